@@ -0,0 +1,528 @@
+package edu.ucla.cs.baggins.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor which generates a ModelAdapter for each class annotated with @ClientTable.
+ * The adapter for edu.example.User is edu.example.User$$BagginsAdapter. It moves the @ClientColumn
+ * fields between the model, a Cursor, ContentValues and post params with direct field access
+ * instead of the reflection used by BagginsDomainModel.
+ * <p/>
+ * Only fields the generated class can see are accessed directly, i.e. public fields or non-private
+ * fields declared in the package of the model. Private fields and fields of types the processor
+ * does not know are delegated back to the reflective helpers of BagginsDomainModel, so the
+ * adapter always behaves the same as reflection would.
+ * <p/>
+ * It also generates edu.ucla.cs.baggins.generated.BagginsModelRegistry, which lists every concrete
+ * @ClientTable class so the runtime does not have to scan the dex file to find them. Only run this
+ * processor on the app module, the registry has a fixed name.
+ */
+@SupportedAnnotationTypes(BagginsProcessor.CLIENT_TABLE)
+public class BagginsProcessor extends AbstractProcessor {
+
+    final static String ANNOTATIONS   = "edu.ucla.cs.baggins.data.provider.model.annotations";
+    final static String CLIENT_TABLE  = ANNOTATIONS + ".ClientTable";
+    final static String CLIENT_COLUMN = ANNOTATIONS + ".ClientColumn";
+    final static String BASE_MODEL    = "edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel";
+    final static String MODEL_ADAPTER = "edu.ucla.cs.baggins.data.provider.model.base.ModelAdapter";
+
+    /**
+     * Must match ModelRegistry.CLASS_NAME.
+     */
+    final static String REGISTRY_PACKAGE = "edu.ucla.cs.baggins.generated";
+    final static String REGISTRY_NAME    = "BagginsModelRegistry";
+    final static String MODEL_REGISTRY   = "edu.ucla.cs.baggins.data.provider.model.base.ModelRegistry";
+
+    /**
+     * Must match ModelAdapter.SUFFIX.
+     */
+    final static String ADAPTER_SUFFIX = "$$BagginsAdapter";
+
+    /**
+     * How the generated code reads and writes a field.
+     */
+    enum Kind {
+        STRING, BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, CHAR, BLOB, DATE,
+
+        /**
+         * Unknown type, delegate to BagginsDomainModel.
+         */
+        OTHER
+    }
+
+    /**
+     * A field annotated with @ClientColumn.
+     */
+    static class Column {
+        String  column;      // The column name from @ClientColumn
+        String  field;       // The name of the java field
+        Kind    kind;        // The type of the field
+        boolean isBoxed;     // Is it a boxed primitive, i.e. Long instead of long
+        boolean isDirect;    // Can the generated code access the field directly
+    }
+
+    /**
+     * The canonical names of the models found so far, sorted so the registry is deterministic.
+     */
+    private final Set<String> mModelNames = new TreeSet<>();
+
+    /**
+     * The registry is written once, in the first round which finds no new models. Writing the
+     * adapters always causes another round, so this is normally before the last round.
+     */
+    private boolean mRegistryWritten = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement clientTable = processingEnv.getElementUtils().getTypeElement(CLIENT_TABLE);
+        if (clientTable == null) {
+            return false;
+        }
+
+        int modelCount = mModelNames.size();
+        for (Element element : roundEnv.getElementsAnnotatedWith(clientTable)) {
+            if (element.getKind() != ElementKind.CLASS ||
+                element.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;                   // Only concrete models are instantiated
+            }
+
+            TypeElement model = (TypeElement) element;
+            mModelNames.add(model.getQualifiedName().toString());
+            try {
+                writeAdapter(model, getColumns(model));
+            } catch (IOException e) {
+                error(model, "Unable to write " + ADAPTER_SUFFIX + " for " + model + ": " + e);
+            }
+        }
+
+        boolean foundModels = mModelNames.size() > modelCount;
+        if (!foundModels && !mRegistryWritten && !mModelNames.isEmpty()) {
+            mRegistryWritten = true;
+            try {
+                writeRegistry();
+            } catch (IOException e) {
+                error(null, "Unable to write " + REGISTRY_NAME + ": " + e);
+            }
+        }
+
+        return false;                       // Let other processors see @ClientTable
+    }
+
+    // ------------------------------------------------------------------------
+    // Reading the model
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the @ClientColumn fields from BagginsDomainModel down to model.
+     */
+    List<Column> getColumns(TypeElement model) {
+        LinkedList<TypeElement> hierarchy = new LinkedList<>();
+        for (TypeElement type = model; type != null; type = getSuperclass(type)) {
+            hierarchy.addFirst(type);
+            if (type.getQualifiedName().contentEquals(BASE_MODEL)) {
+                break;
+            }
+        }
+
+        String       modelPackage = getPackage(model);
+        List<Column> columns      = new ArrayList<>();
+        for (TypeElement type : hierarchy) {
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                String columnName = getClientColumnValue(field);
+                if (columnName == null || field.getModifiers().contains(Modifier.STATIC)) {
+                    continue;
+                }
+
+                Set<Modifier> modifiers = field.getModifiers();
+
+                Column column = new Column();
+                column.column = columnName;
+                column.field = field.getSimpleName().toString();
+                column.kind = getKind(field.asType());
+                column.isBoxed = field.asType().getKind() == TypeKind.DECLARED;
+                column.isDirect = modifiers.contains(Modifier.PUBLIC) ||
+                                  (!modifiers.contains(Modifier.PRIVATE) && getPackage(type).equals(modelPackage));
+
+                if (modifiers.contains(Modifier.PRIVATE)) {
+                    processingEnv.getMessager().printMessage(
+                            Diagnostic.Kind.NOTE,
+                            "Field " + column.field + " is private and will be accessed reflectively. " +
+                            "Make it package-private to use direct access.", field);
+                }
+                columns.add(column);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return The value of @ClientColumn on field, or null if field is not annotated with it.
+     */
+    String getClientColumnValue(VariableElement field) {
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(CLIENT_COLUMN)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                        mirror.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("value")) {
+                        return (String) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    Kind getKind(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case BYTE:
+                return Kind.BYTE;
+            case SHORT:
+                return Kind.SHORT;
+            case INT:
+                return Kind.INT;
+            case LONG:
+                return Kind.LONG;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case CHAR:
+                return Kind.CHAR;
+            case ARRAY:
+                TypeMirror component = ((ArrayType) type).getComponentType();
+                return (component.getKind() == TypeKind.BYTE) ? Kind.BLOB : Kind.OTHER;
+            case DECLARED:
+                String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+                switch (name) {
+                    case "java.lang.String":
+                        return Kind.STRING;
+                    case "java.lang.Boolean":
+                        return Kind.BOOLEAN;
+                    case "java.lang.Byte":
+                        return Kind.BYTE;
+                    case "java.lang.Short":
+                        return Kind.SHORT;
+                    case "java.lang.Integer":
+                        return Kind.INT;
+                    case "java.lang.Long":
+                        return Kind.LONG;
+                    case "java.lang.Float":
+                        return Kind.FLOAT;
+                    case "java.lang.Double":
+                        return Kind.DOUBLE;
+                    case "java.lang.Character":
+                        return Kind.CHAR;
+                    case "java.util.Date":
+                        return Kind.DATE;
+                    default:
+                        return Kind.OTHER;
+                }
+            default:
+                return Kind.OTHER;
+        }
+    }
+
+    TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    String getPackage(TypeElement type) {
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    }
+
+    void error(Element element, String message) {
+        Messager messager = processingEnv.getMessager();
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    // ------------------------------------------------------------------------
+    // Writing the adapter
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return The simple name of the adapter class for model, e.g. Outer$Inner$$BagginsAdapter.
+     */
+    String getAdapterName(TypeElement model) {
+        Elements elements    = processingEnv.getElementUtils();
+        String   packageName = getPackage(model);
+        String   binaryName  = elements.getBinaryName(model).toString();
+        if (!packageName.isEmpty()) {
+            binaryName = binaryName.substring(packageName.length() + 1);
+        }
+        return binaryName + ADAPTER_SUFFIX;
+    }
+
+    void writeAdapter(TypeElement model, List<Column> columns) throws IOException {
+        String packageName = getPackage(model);
+        String adapterName = getAdapterName(model);
+        String modelName   = model.getQualifiedName().toString();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated code from baggins-compiler. Do not modify!\n");
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        sb.append("public final class ").append(adapterName)
+          .append(" extends ").append(MODEL_ADAPTER).append("<").append(modelName).append("> {\n\n");
+
+        // The column names, in the order the methods below address them
+        sb.append("    private final static String[] COLUMNS = {\n");
+        for (Column column : columns) {
+            sb.append("        ").append(quote(column.column)).append(",\n");
+        }
+        sb.append("    };\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public String[] getColumnNames() {\n");
+        sb.append("        return COLUMNS.clone();\n");
+        sb.append("    }\n\n");
+
+        // ContentProvider -> Model
+        sb.append("    @Override\n");
+        sb.append("    public void load(").append(modelName).append(" model, android.database.Cursor cursor, int[] idx) {\n");
+        for (int i = 0; i < columns.size(); i++) {
+            writeLoad(sb, columns.get(i), i);
+        }
+        sb.append("    }\n\n");
+
+        // Model -> ContentProvider
+        sb.append("    @Override\n");
+        sb.append("    public void writeContentValues(").append(modelName).append(" model, android.content.ContentValues values) {\n");
+        for (int i = 0; i < columns.size(); i++) {
+            writeContentValue(sb, columns.get(i), i);
+        }
+        sb.append("    }\n\n");
+
+        // Model -> Post Params
+        sb.append("    @Override\n");
+        sb.append("    public void writePostParams(").append(modelName).append(" model, java.util.Map<String, String> params) {\n");
+        for (int i = 0; i < columns.size(); i++) {
+            writePostParam(sb, columns.get(i), i);
+        }
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? adapterName : packageName + "." + adapterName;
+        Writer writer        = processingEnv.getFiler().createSourceFile(qualifiedName, model).openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    void writeRegistry() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated code from baggins-compiler. Do not modify!\n");
+        sb.append("package ").append(REGISTRY_PACKAGE).append(";\n\n");
+        sb.append("public final class ").append(REGISTRY_NAME).append(" implements ").append(MODEL_REGISTRY).append(" {\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public Class<?>[] getModelClasses() {\n");
+        sb.append("        return new Class<?>[]{\n");
+        for (String modelName : mModelNames) {
+            sb.append("                ").append(modelName).append(".class,\n");
+        }
+        sb.append("        };\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        Writer writer = processingEnv.getFiler().createSourceFile(REGISTRY_PACKAGE + "." + REGISTRY_NAME).openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Mirrors BagginsDomainModel.setModelField.
+     */
+    void writeLoad(StringBuilder sb, Column column, int i) {
+        String field = "model." + column.field;
+        String idx   = "idx[" + i + "]";
+
+        if (!column.isDirect || column.kind == Kind.OTHER) {
+            sb.append("        setField(model, ").append(i).append(", cursor, ").append(idx).append(");\n");
+            return;
+        }
+
+        switch (column.kind) {
+            case STRING:
+                sb.append("        ").append(field).append(" = cursor.getString(").append(idx).append(");\n");
+                break;
+            case BOOLEAN:
+                sb.append("        ").append(field).append(" = cursor.getInt(").append(idx).append(") != 0;\n");
+                break;
+            case BYTE:
+                sb.append("        ").append(field).append(" = (byte) cursor.getShort(").append(idx).append(");\n");
+                break;
+            case SHORT:
+                sb.append("        ").append(field).append(" = cursor.getShort(").append(idx).append(");\n");
+                break;
+            case INT:
+                sb.append("        ").append(field).append(" = cursor.getInt(").append(idx).append(");\n");
+                break;
+            case LONG:
+                sb.append("        ").append(field).append(" = cursor.getLong(").append(idx).append(");\n");
+                break;
+            case FLOAT:
+                sb.append("        ").append(field).append(" = cursor.getFloat(").append(idx).append(");\n");
+                break;
+            case DOUBLE:
+                sb.append("        ").append(field).append(" = cursor.getDouble(").append(idx).append(");\n");
+                break;
+            case BLOB:
+                sb.append("        ").append(field).append(" = cursor.getBlob(").append(idx).append(");\n");
+                break;
+            case CHAR:
+                sb.append("        {\n");
+                sb.append("            String s = cursor.getString(").append(idx).append(");\n");
+                sb.append("            ").append(field).append(" = (s != null && !s.isEmpty()) ? s.charAt(0) : '\\0';\n");
+                sb.append("        }\n");
+                break;
+            case DATE:
+                sb.append("        ").append(field).append(" = cursor.isNull(").append(idx).append(") ? null : new java.util.Date(cursor.getLong(")
+                  .append(idx).append("));\n");
+                break;
+        }
+    }
+
+    /**
+     * Mirrors BagginsDomainModel.setContentValue.
+     */
+    void writeContentValue(StringBuilder sb, Column column, int i) {
+        String key   = quote(column.column);
+        String field = "model." + column.field;
+
+        if (!column.isDirect) {
+            sb.append("        putContentValue(model, values, ").append(key).append(", getField(model, ").append(i).append("));\n");
+            return;
+        }
+
+        switch (column.kind) {
+            case CHAR:
+                if (column.isBoxed) {
+                    sb.append("        if (").append(field).append(" == null) values.putNull(").append(key).append(");\n");
+                    sb.append("        else values.put(").append(key).append(", Character.toString(").append(field).append("));\n");
+                } else {
+                    sb.append("        values.put(").append(key).append(", Character.toString(").append(field).append("));\n");
+                }
+                break;
+            case DATE:
+                sb.append("        if (").append(field).append(" == null) values.putNull(").append(key).append(");\n");
+                sb.append("        else values.put(").append(key).append(", ").append(field).append(".getTime());\n");
+                break;
+            case OTHER:
+                sb.append("        putContentValue(model, values, ").append(key).append(", ").append(field).append(");\n");
+                break;
+            default:
+                // ContentValues.put has an overload for each of these, and stores null as null
+                sb.append("        values.put(").append(key).append(", ").append(field).append(");\n");
+                break;
+        }
+    }
+
+    /**
+     * Mirrors BagginsDomainModel.setPostDataParam.
+     */
+    void writePostParam(StringBuilder sb, Column column, int i) {
+        String key   = quote(column.column);
+        String field = "model." + column.field;
+
+        if (!column.isDirect) {
+            sb.append("        putPostParam(model, params, ").append(key).append(", getField(model, ").append(i).append("));\n");
+            return;
+        }
+
+        String value;
+        switch (column.kind) {
+            case STRING:
+                value = field;
+                break;
+            case BOOLEAN:
+                value = field + " ? \"1\" : \"0\"";
+                break;
+            case BYTE:
+                value = "Byte.toString(" + field + ")";
+                break;
+            case SHORT:
+                value = "Short.toString(" + field + ")";
+                break;
+            case INT:
+                value = "Integer.toString(" + field + ")";
+                break;
+            case LONG:
+                value = "Long.toString(" + field + ")";
+                break;
+            case FLOAT:
+                value = "Float.toString(" + field + ")";
+                break;
+            case DOUBLE:
+                value = "Double.toString(" + field + ")";
+                break;
+            case CHAR:
+                value = "Character.toString(" + field + ")";
+                break;
+            case DATE:
+                value = "Long.toString(" + field + ".getTime())";
+                break;
+            default:                        // BLOB and OTHER, let the model decide
+                sb.append("        putPostParam(model, params, ").append(key).append(", ").append(field).append(");\n");
+                return;
+        }
+
+        if (column.isBoxed) {               // null removes the key
+            sb.append("        if (").append(field).append(" == null) params.remove(").append(key).append(");\n");
+            sb.append("        else params.put(").append(key).append(", ").append(value).append(");\n");
+        } else {
+            sb.append("        params.put(").append(key).append(", ").append(value).append(");\n");
+        }
+    }
+
+    /**
+     * @return s as a java string literal.
+     */
+    static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
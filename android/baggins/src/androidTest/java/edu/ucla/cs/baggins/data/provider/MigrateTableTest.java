@@ -0,0 +1,120 @@
+package edu.ucla.cs.baggins.data.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.Map;
+
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientColumn;
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+
+/**
+ * Checks that ProviderDatabaseHelper.migrateTable keeps the rows which have not been synced yet
+ * when a column changes type and a field is dropped.
+ */
+public class MigrateTableTest extends AndroidTestCase {
+
+    private final static String TABLE = "migrate_test";
+
+    /**
+     * The model before the migration.
+     */
+    @ClientTable(TABLE)
+    public static class OldModel extends BagginsDomainModel<OldModel> {
+        @ClientColumn("name")
+        public String name;
+
+        @ClientColumn("score")
+        public Long score;
+
+        @ClientColumn("nickname")
+        public String nickname;
+    }
+
+    /**
+     * The model after the migration: score is now a REAL and nickname is gone.
+     */
+    @ClientTable(TABLE)
+    public static class NewModel extends BagginsDomainModel<NewModel> {
+        @ClientColumn("name")
+        public String name;
+
+        @ClientColumn("score")
+        public Double score;
+    }
+
+    private SQLiteDatabase         mDb;
+    private ProviderDatabaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);      // In memory
+        mHelper = new ProviderDatabaseHelper(getContext(), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testMigrateKeepsUnsyncedRows() {
+        mHelper.createTable(mDb, modelClass(OldModel.class));
+        insert(-1, "I", "Ann", 3);
+        insert(-2, "U", "Bob", 5);
+        insert(7, "D", "Cat", 8);
+        insert(8, "S", "Dan", 13);
+
+        mDb.beginTransaction();
+        try {
+            mHelper.reconcileTable(mDb, modelClass(NewModel.class), mHelper.getAllTableNames(mDb));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        Map<String, ProviderDatabaseHelper.SQLiteColumnInfo> columns = mHelper.getColumnInfo(mDb, TABLE);
+        assertFalse("nickname was not dropped", columns.containsKey("nickname"));
+        assertEquals(ProviderDatabaseHelper.SQLiteType.REAL, columns.get("score").type);
+
+        Cursor cursor = mDb.query(TABLE, new String[]{BagginsDomainModel._ID, BagginsDomainModel.STATUS, "name", "score"},
+                                  null, null, null, null, BagginsDomainModel._ID + " ASC");
+        try {
+            assertEquals(4, cursor.getCount());
+            assertRow(cursor, -2, "U", "Bob", 5);
+            assertRow(cursor, -1, "I", "Ann", 3);
+            assertRow(cursor, 7, "D", "Cat", 8);
+            assertRow(cursor, 8, "S", "Dan", 13);
+        } finally {
+            cursor.close();
+        }
+        assertFalse("the temporary table was left behind", mHelper.doesTableExist(mDb, TABLE + "_baggins_migrate"));
+    }
+
+    private void insert(long id, String status, String name, long score) {
+        ContentValues values = new ContentValues();
+        values.put(BagginsDomainModel._ID, id);
+        values.put(BagginsDomainModel.STATUS, status);
+        values.put("name", name);
+        values.put("score", score);
+        values.put("nickname", name.toLowerCase());
+        mDb.insertOrThrow(TABLE, null, values);
+    }
+
+    private static void assertRow(Cursor cursor, long id, String status, String name, double score) {
+        assertTrue(cursor.moveToNext());
+        assertEquals(id, cursor.getLong(0));
+        assertEquals(status, cursor.getString(1));
+        assertEquals(name, cursor.getString(2));
+        assertEquals(score, cursor.getDouble(3), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<BagginsDomainModel<?>> modelClass(Class<?> modelClass) {
+        return (Class<BagginsDomainModel<?>>) modelClass;
+    }
+}
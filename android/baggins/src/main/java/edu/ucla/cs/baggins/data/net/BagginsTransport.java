@@ -0,0 +1,153 @@
+package edu.ucla.cs.baggins.data.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of HttpUtils. The default is UrlConnectionTransport; set another with
+ * HttpUtils.setTransport, e.g. one pointed at a local mock server in a test.
+ * <p/>
+ * A transport only moves bytes: HttpUtils builds the requests and checks the response codes.
+ * It does not use android.* classes, so it runs in a plain JVM unit test.
+ */
+public interface BagginsTransport {
+
+    /**
+     * Send request and return its response, whatever its code. The caller must close the
+     * response, which lets the transport reuse the connection.
+     *
+     * @throws IOException If the request could not be sent or the response could not be read.
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * An HTTP request.
+     */
+    final class Request {
+        public final static String GET  = "GET";
+        public final static String POST = "POST";
+
+        public final String              method;
+        public final String              url;
+        public final String              contentType;
+        public final String              authToken;     // May be null
+        public final byte[]              body;          // Null for no body
+        public final Map<String, String> headers;       // Any other request headers
+
+        /**
+         * @param method      The request method, GET or POST.
+         * @param url         The url.
+         * @param contentType The content-type of the body (e.g. application/json), may be null.
+         * @param authToken   The auth token, sent only if not null.
+         * @param body        The body, not yet compressed, or null.
+         */
+        public Request(String method, String url, String contentType, String authToken, byte[] body) {
+            this(method, url, contentType, authToken, body, Collections.<String, String>emptyMap());
+        }
+
+        /**
+         * @param headers Any other request headers, by name.
+         */
+        public Request(String method, String url, String contentType, String authToken, byte[] body,
+                       Map<String, String> headers) {
+            this.method = method;
+            this.url = url;
+            this.contentType = contentType;
+            this.authToken = authToken;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url;
+        }
+    }
+
+    /**
+     * An HTTP response. The body is streamed, already decompressed, and closing the response
+     * closes it.
+     */
+    class Response implements Closeable {
+        private final int                       mCode;
+        private final String                    mMessage;
+        private final Map<String, List<String>> mHeaders;
+        private final InputStream               mBody;
+
+        /**
+         * @param code    The response code.
+         * @param message The response message, may be null.
+         * @param headers The response headers, may be null.
+         * @param body    The body. Empty for a response with none.
+         */
+        public Response(int code, String message, Map<String, List<String>> headers, InputStream body) {
+            mCode = code;
+            mMessage = message;
+            mHeaders = headers == null ? Collections.<String, List<String>>emptyMap() : headers;
+            mBody = body;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * @return Whether the code is 2xx.
+         */
+        public boolean isSuccessful() {
+            return mCode >= 200 && mCode < 300;
+        }
+
+        /**
+         * @return The first value of the header name, case insensitive, or null.
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return The body as UTF-8 characters.
+         */
+        public Reader getReader() throws IOException {
+            return new InputStreamReader(mBody, "UTF-8");
+        }
+
+        /**
+         * Read the rest of the body as a UTF-8 string.
+         */
+        public String readString() throws IOException {
+            ByteArrayOutputStream out    = new ByteArrayOutputStream();
+            byte[]                buffer = new byte[8192];
+            int                   read;
+            while ((read = mBody.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+
+        @Override
+        public void close() throws IOException {
+            mBody.close();
+        }
+    }
+}
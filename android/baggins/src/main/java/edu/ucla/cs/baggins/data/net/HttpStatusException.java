@@ -0,0 +1,63 @@
+package edu.ucla.cs.baggins.data.net;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Thrown by HttpUtils when the server answers with a code other than 200 or 201.
+ */
+public class HttpStatusException extends IOException {
+
+    private final int  mCode;
+    private final long mRetryAfterMillis;
+
+    /**
+     * @param code             The response code.
+     * @param message          The response message, may be null.
+     * @param retryAfterMillis How long the server asked us to wait, or 0.
+     */
+    public HttpStatusException(int code, String message, long retryAfterMillis) {
+        super("Response code: " + code + ".\nResponse Message " + message);
+        mCode = code;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * @return How long the server asked us to wait with its Retry-After header (e.g. with a 429
+     * or 503), or 0 if it did not.
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+
+    /**
+     * Parse a Retry-After header, which is either a number of seconds or an HTTP date.
+     *
+     * @param retryAfter The header, may be null.
+     * @param nowMillis  The current time, for an HTTP date.
+     * @return The wait in milliseconds, or 0 if there is none or it cannot be parsed.
+     */
+    public static long parseRetryAfter(String retryAfter, long nowMillis) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            // Not seconds, try a date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(retryAfter).getTime() - nowMillis);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
@@ -1,23 +1,19 @@
 package edu.ucla.cs.baggins.data.net;
 
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.util.Collections;
 import java.util.Map;
 
-import edu.ucla.cs.baggins.constants.Constants;
-
 /**
  * Created by Ethan L. Schreiber on 11/2/15.
+ * <p/>
+ * Every call goes through a BagginsTransport, by default a UrlConnectionTransport which reuses
+ * connections and gzips. Set another with setTransport.
  */
 public class HttpUtils {
     private final static String TAG = "http_utils";
@@ -26,42 +22,36 @@ public class HttpUtils {
     // Constants for creating request strings
     // ------------------------------------------------------------------------
 
-    private final static String POST           = "POST";
-    private final static String GET            = "GET";
     private final static String CT_JSON        = "application/json";
     private final static String CT_URL_ENCODED = "application/x-www-form-urlencoded";
 
     /**
-     * Get an HttpURLConnection.
-     *
-     * @param url           The url to connect to.
-     * @param requestMethod The request method (i.e. POST or GET).
-     * @param contentType   The content-type, (e.g. application/json).
-     * @param authToken     The auth token for connecting. Will be set only if not null.
-     * @return An HttpURLConnection object
-     * @throws IOException
+     * The header of a key which identifies a request, so the server applies a request sent again
+     * (e.g. retried after its response was lost) only once.
      */
-    protected static HttpURLConnection getConnection(String url, String requestMethod, String contentType, String authToken) throws IOException {
+    public final static String IDEMPOTENCY_KEY = "Idempotency-Key";
 
-        Log.i(TAG, "Get u: " + url);
-        URL u = new URL(url);
-
-        HttpURLConnection conn = (HttpURLConnection) u.openConnection();
-        conn.setReadTimeout(Constants.NET_READ_TIMEOUT_MILLIS /* milliseconds */);
-        conn.setConnectTimeout(Constants.NET_CONNECT_TIMEOUT_MILLIS /* milliseconds */);
-        conn.setRequestMethod(requestMethod);
-        conn.setRequestProperty("Content-Type", contentType);
+    // ------------------------------------------------------------------------
+    // Transport
+    // ------------------------------------------------------------------------
 
+    private static volatile BagginsTransport sTransport = new UrlConnectionTransport();
 
-        if (requestMethod.equals(POST)) {       // If a POST
-            conn.setDoOutput(true);             // Then further output will be appended
-        }
+    /**
+     * @return The transport every call goes through.
+     */
+    public static BagginsTransport getTransport() {
+        return sTransport;
+    }
 
-        if (authToken != null) {
-            conn.setRequestProperty(Constants.AUTH_TOKEN_KEY, authToken);
+    /**
+     * Replace the transport, e.g. with one for a local mock server in a test.
+     */
+    public static void setTransport(BagginsTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
         }
-
-        return conn;
+        sTransport = transport;
     }
 
     /**
@@ -71,11 +61,20 @@ public class HttpUtils {
      * @return
      */
     public static String getJSON(String url, String authToken) throws IOException {
+        return executeForString(new BagginsTransport.Request(BagginsTransport.Request.GET, url, CT_JSON, authToken, null));
+    }
 
-        HttpURLConnection conn = getConnection(url, GET, CT_JSON, authToken);
-        conn.setUseCaches(false);
-        conn.setAllowUserInteraction(false);
-        return connectionToResponseString(conn);
+    /**
+     * Get JSON from server as a stream, so a large response is parsed as it arrives instead
+     * of being read into a String first. Close the response when done.
+     *
+     * @param url       The url
+     * @param authToken The authentication token, may be null
+     * @return The open response
+     * @throws IOException If the request fails or the response code is not 200 or 201
+     */
+    public static BagginsTransport.Response getJSONStream(String url, String authToken) throws IOException {
+        return execute(new BagginsTransport.Request(BagginsTransport.Request.GET, url, CT_JSON, authToken, null));
     }
 
     /**
@@ -88,16 +87,45 @@ public class HttpUtils {
      */
     public static String performPostCall(String requestURL, Map<String, String> postDataParams, String authToken)
     throws IOException {
+        byte[] body = formatPostParams(postDataParams).getBytes("UTF-8");
+        return executeForString(new BagginsTransport.Request(BagginsTransport.Request.POST, requestURL,
+                                                             CT_URL_ENCODED, authToken, body));
+    }
 
-        HttpURLConnection conn   = getConnection(requestURL, POST, CT_URL_ENCODED, authToken);
-        OutputStream      os     = conn.getOutputStream();
-        BufferedWriter    writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(formatPostParams(postDataParams));
-        writer.flush();
-        writer.close();
-        os.close();
+    /**
+     * Perform a post of a JSON body to the server.
+     *
+     * @param requestURL The url for the post request
+     * @param json       The JSON body
+     * @param authToken  The authentication token, may be null
+     * @return The response body
+     * @throws IOException
+     */
+    public static String performJSONPostCall(String requestURL, String json, String authToken)
+    throws IOException {
+        return performJSONPostCall(requestURL, json, authToken, null);
+    }
 
-        return connectionToResponseString(conn);
+    /**
+     * Perform a post of a JSON body to the server, which the server applies once however many
+     * times it is sent with the same idempotencyKey.
+     *
+     * @param requestURL     The url for the post request
+     * @param json           The JSON body
+     * @param authToken      The authentication token, may be null
+     * @param idempotencyKey Sent as the IDEMPOTENCY_KEY header, may be null
+     * @return The response body
+     * @throws IOException
+     */
+    public static String performJSONPostCall(String requestURL, String json, String authToken,
+                                             @Nullable String idempotencyKey)
+    throws IOException {
+        byte[]              body    = json.getBytes("UTF-8");
+        Map<String, String> headers = idempotencyKey == null
+                                      ? Collections.<String, String>emptyMap()
+                                      : Collections.singletonMap(IDEMPOTENCY_KEY, idempotencyKey);
+        return executeForString(new BagginsTransport.Request(BagginsTransport.Request.POST, requestURL,
+                                                             CT_JSON, authToken, body, headers));
     }
 
 
@@ -156,38 +184,42 @@ public class HttpUtils {
 
 
     /**
-     * Get the response from the HttpURLConnection and convert it to a string
+     * Execute request and read the response to a string.
      *
-     * @param conn
-     * @return
-     * @throws IOException
+     * @throws IOException If the request fails or the response code is not 200 or 201.
      */
-    private static String connectionToResponseString(final HttpURLConnection conn) throws IOException {
+    private static String executeForString(BagginsTransport.Request request) throws IOException {
+        BagginsTransport.Response response = execute(request);
         try {
-            conn.connect();
-            int status = conn.getResponseCode();
-            Log.i(TAG, "Http Status: " + status);
-            switch (status) {
-                case 200:
-                case 201:
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        sb.append(line).append("\n");
-                    }
-                    br.close();
-                    return sb.toString();
-
-                default:
-                    Log.i(TAG, "Throw Error");
-                    throw new IOException("Response code: " + status +
-                                          ".\nResponse Message " + conn.getResponseMessage());
-            }
+            return response.readString();
         } finally {
-            Log.i(TAG, "Disconnecting");
-            conn.disconnect();
+            response.close();
+        }
+    }
+
+    /**
+     * Execute request and check the response code.
+     *
+     * @return The open response.
+     * @throws IOException If the request fails, or an HttpStatusException if the response code is
+     *                     not 200 or 201.
+     */
+    private static BagginsTransport.Response execute(BagginsTransport.Request request) throws IOException {
+        Log.i(TAG, request.toString());
+        BagginsTransport.Response response = sTransport.execute(request);
+        int                       status   = response.getCode();
+        Log.i(TAG, "Http Status: " + status);
+        switch (status) {
+            case 200:
+            case 201:
+                return response;
+
+            default:
+                Log.i(TAG, "Throw Error");
+                response.close();
+                throw new HttpStatusException(status, response.getMessage(),
+                                              HttpStatusException.parseRetryAfter(response.getHeader("Retry-After"),
+                                                                                   System.currentTimeMillis()));
         }
     }
 }
@@ -0,0 +1,174 @@
+package edu.ucla.cs.baggins.data.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.ucla.cs.baggins.constants.Constants;
+
+/**
+ * The default BagginsTransport, over HttpURLConnection.
+ * <p/>
+ * - Keep-alive: a connection is never disconnect()ed. Closing a response drains and closes its
+ * body, which returns the connection to HttpURLConnection's pool for the next request to the
+ * same host, saving a TCP and TLS handshake per call.
+ * <p/>
+ * - Gzip: every request asks for a gzip response, which is decompressed as it is read. Request
+ * bodies are only gzipped when asked for with gzipMinBytes, since the server must accept
+ * Content-Encoding: gzip. Then bodies of at least gzipMinBytes are sent gzipped, and smaller
+ * ones (e.g. the auth posts) as is. A gzipped request refused with 415 is sent again as is.
+ * <p/>
+ * - Streaming: request bodies are sent in fixed length streaming mode, so HttpURLConnection does
+ * not buffer a second copy. Response bodies are read from the socket as the caller consumes them.
+ */
+public class UrlConnectionTransport implements BagginsTransport {
+
+    /**
+     * A good gzipMinBytes for a server which accepts gzipped requests. Below this gzip saves too
+     * little.
+     */
+    public final static int GZIP_MIN_BYTES = 1024;
+
+    /**
+     * For gzipMinBytes, never gzip a request body. The default.
+     */
+    public final static int NEVER_GZIP = Integer.MAX_VALUE;
+
+    private final static String GZIP = "gzip";
+
+    private final static int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    /**
+     * Read at most this much of an unread body to return its connection to the pool. A larger
+     * body is cheaper to abandon with its connection.
+     */
+    private final static int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int mGzipMinBytes;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    public UrlConnectionTransport() {
+        this(NEVER_GZIP, Constants.NET_CONNECT_TIMEOUT_MILLIS, Constants.NET_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param gzipMinBytes         The smallest request body to gzip (e.g. GZIP_MIN_BYTES), or
+     *                             NEVER_GZIP if the server does not accept gzipped requests.
+     * @param connectTimeoutMillis The connect timeout.
+     * @param readTimeoutMillis    The read timeout.
+     */
+    public UrlConnectionTransport(int gzipMinBytes, int connectTimeoutMillis, int readTimeoutMillis) {
+        mGzipMinBytes = gzipMinBytes;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        boolean  gzip     = request.body != null && request.body.length >= mGzipMinBytes;
+        Response response = execute(request, gzip);
+        if (gzip && response.getCode() == HTTP_UNSUPPORTED_MEDIA_TYPE) {   // The server can't gunzip
+            response.close();
+            response = execute(request, false);
+        }
+        return response;
+    }
+
+    private Response execute(Request request, boolean gzip) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(request.url).openConnection();
+        conn.setConnectTimeout(mConnectTimeoutMillis);
+        conn.setReadTimeout(mReadTimeoutMillis);
+        conn.setRequestMethod(request.method);
+        conn.setUseCaches(false);
+        conn.setAllowUserInteraction(false);
+        conn.setRequestProperty("Accept-Encoding", GZIP);   // So we decompress, not HttpURLConnection
+        if (request.contentType != null) {
+            conn.setRequestProperty("Content-Type", request.contentType);
+        }
+        if (request.authToken != null) {
+            conn.setRequestProperty(Constants.AUTH_TOKEN_KEY, request.authToken);
+        }
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        try {
+            if (request.body != null) {
+                writeBody(conn, request.body, gzip);
+            }
+
+            int         code = conn.getResponseCode();
+            InputStream body = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (body == null) {
+                body = new ByteArrayInputStream(new byte[0]);
+            } else if (GZIP.equalsIgnoreCase(conn.getContentEncoding())) {
+                body = new GZIPInputStream(body);
+            }
+            return new Response(code, conn.getResponseMessage(), conn.getHeaderFields(), new DrainingInputStream(body));
+
+        } catch (IOException e) {
+            conn.disconnect();      // The connection is in an unknown state, don't reuse it
+            throw e;
+        }
+    }
+
+    private static void writeBody(HttpURLConnection conn, byte[] body, boolean gzip) throws IOException {
+        if (gzip) {
+            body = gzip(body);
+            conn.setRequestProperty("Content-Encoding", GZIP);
+        }
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+
+        OutputStream os = conn.getOutputStream();
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out  = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream      gzip = new GZIPOutputStream(out);
+        gzip.write(body);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads what is left of a small body before closing it, since HttpURLConnection only pools a
+     * connection whose body was read to the end.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+
+        DrainingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buffer  = new byte[4096];
+                int    drained = 0;
+                int    read;
+                while (drained < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+                    drained += read;
+                }
+            } catch (IOException e) {
+                // The connection is not reused, nothing else to do
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
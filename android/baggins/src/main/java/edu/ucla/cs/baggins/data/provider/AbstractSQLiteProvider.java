@@ -10,13 +10,24 @@ import android.content.OperationApplicationException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
+import edu.ucla.cs.baggins.data.provider.metrics.ProviderMetrics;
+import edu.ucla.cs.baggins.data.provider.util.NotificationCoalescer;
+
 /**
  * General purpose {@link ContentProvider} base class that uses SQLiteDatabase for storage.
  */
@@ -25,22 +36,101 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
     private static final String TAG = "AbstractSQLiteProvider";
 
     protected SQLiteOpenHelper mOpenHelper;
-    private   Set<Uri>         mChangedUris;
-    protected SQLiteDatabase   mDb;
 
-    private final        ThreadLocal<Boolean> mApplyingBatch          = new ThreadLocal<Boolean>();
-    private static final int                  SLEEP_AFTER_YIELD_DELAY = 4000;
+    private static final int SLEEP_AFTER_YIELD_DELAY = 4000;
+
+    /**
+     * The default of getBatchChunkSize.
+     */
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+
+    /**
+     * Passed to ContentProviderOperation.apply by a streaming batch, which does not keep results.
+     */
+    private static final ContentProviderResult[] NO_RESULTS = new ContentProviderResult[0];
+
+    /**
+     * The transaction the current thread is running, if any. Binder threads call the provider
+     * concurrently, so everything about a transaction lives here rather than in fields.
+     */
+    private final ThreadLocal<TransactionContext> mTransaction = new ThreadLocal<>();
+
+    /**
+     * The state of one provider transaction: its database, whether it is applying a batch, and
+     * the uris it changed, which are notified when (and only if) it commits. Uris which asked
+     * for their notification to be deferred (see isDeferNotify) are kept apart.
+     */
+    protected static final class TransactionContext {
+        public final SQLiteDatabase db;
+        public final boolean        applyingBatch;
+        public final Set<Uri>       changedUris         = new HashSet<>();
+        public final Set<Uri>       deferredUris        = new HashSet<>();
+        public       boolean        callerIsSyncAdapter;
+        public       boolean        successful          = false;
+
+        TransactionContext(SQLiteDatabase db, boolean applyingBatch, boolean callerIsSyncAdapter) {
+            this.db = db;
+            this.applyingBatch = applyingBatch;
+            this.callerIsSyncAdapter = callerIsSyncAdapter;
+        }
+    }
+
+    /**
+     * Notifies the uris changed by committed transactions, created on first use.
+     */
+    private NotificationCoalescer mNotifier;
+
+    /**
+     * Where operations are recorded, see setMetrics.
+     */
+    private static volatile ProviderMetrics sMetrics = ProviderMetrics.DISABLED;
+
+    /**
+     * Record the timing of every provider operation to metrics. Providers are created by the
+     * system, so the hook is process wide.
+     *
+     * @param metrics The hook, or null to disable recording.
+     */
+    public static void setMetrics(@Nullable ProviderMetrics metrics) {
+        sMetrics = (metrics == null) ? ProviderMetrics.DISABLED : metrics;
+    }
+
+    /**
+     * @return The metrics hook, ProviderMetrics.DISABLED if none was set.
+     */
+    public static ProviderMetrics getMetrics() {
+        return sMetrics;
+    }
+
+    /**
+     * @return The table uri refers to, for metrics. This is the first path segment.
+     */
+    protected String getMetricsTable(Uri uri) {
+        return uri.getPathSegments().isEmpty() ? null : uri.getPathSegments().get(0);
+    }
+
+    /**
+     * @return The SQL of an insert into uri with its values left out, for metrics, or null if
+     * not known. Only called when metrics are enabled.
+     */
+    @Nullable
+    protected String getInsertSqlShape(Uri uri) {
+        return null;
+    }
 
     /**
-     * Maximum number of operations allowed in a batch between yield points.
+     * @return The SQL shape of a batch for metrics: BATCH and the tables it wrote to, or null if
+     * they were not collected (metrics were enabled while the batch ran).
      */
-    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+    @Nullable
+    private static String batchSqlShape(@Nullable Set<String> tables) {
+        return tables == null ? null : "BATCH " + TextUtils.join(", ", tables);
+    }
 
     @Override
     public boolean onCreate() {
         Context context = getContext();
         mOpenHelper = getDatabaseHelper(context);
-        mChangedUris = new HashSet<Uri>();
         return true;
     }
 
@@ -67,11 +157,19 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
 
     /**
      * Call this to add a URI to the list of URIs to be notified when the transaction
-     * is committed.
+     * is committed. Outside a transaction, the uri is notified immediately.
      */
     protected void postNotifyUri(Uri uri) {
-        synchronized (mChangedUris) {
-            mChangedUris.add(uri);
+        boolean            defer       = isDeferNotify(uri);
+        TransactionContext transaction = mTransaction.get();
+        if (transaction != null) {
+            (defer ? transaction.deferredUris : transaction.changedUris).add(uri);
+        } else {
+            Set<Uri> changed = new HashSet<>();
+            changed.add(uri);
+            onEndTransaction(defer ? Collections.<Uri>emptySet() : changed,
+                             defer ? changed : Collections.<Uri>emptySet(),
+                             isCallerSyncAdapter(uri));
         }
     }
 
@@ -79,12 +177,101 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
         return false;
     }
 
+    /**
+     * @return True if the notification of a change to uri should be held until
+     * flushNotifications, see BagginsContract.QueryParameters.DEFER_NOTIFY.
+     */
+    public boolean isDeferNotify(Uri uri) {
+        return false;
+    }
+
     public SQLiteOpenHelper getDatabaseHelper() {
         return mOpenHelper;
     }
 
+    /**
+     * When a batch is not atomic (see isBatchAtomic), the batch offers to yield to other
+     * threads every this many operations, as if the caller had marked the operation
+     * withYieldAllowed. Override to configure.
+     */
+    protected int getBatchChunkSize() {
+        return DEFAULT_BATCH_CHUNK_SIZE;
+    }
+
+    /**
+     * True (the default) if a batch is applied all-or-nothing in a single transaction, only
+     * yielding where the caller marked an operation withYieldAllowed. With write-ahead logging,
+     * readers are not blocked by a long batch. False to also yield every getBatchChunkSize()
+     * operations, which commits the batch so far if another thread is waiting.
+     * <p/>
+     * The same goes for bulkInsert: it is all-or-nothing when true, and yields after every row
+     * when false.
+     */
+    protected boolean isBatchAtomic() {
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Transactions
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return The transaction the current thread is running, or null.
+     */
+    @Nullable
+    protected TransactionContext getTransaction() {
+        return mTransaction.get();
+    }
+
+    /**
+     * @return The database of the transaction the current thread is running.
+     * @throws IllegalStateException If the current thread is not in a transaction.
+     */
+    protected SQLiteDatabase getTransactionDatabase() {
+        TransactionContext transaction = mTransaction.get();
+        if (transaction == null) {
+            throw new IllegalStateException("Not in a provider transaction.");
+        }
+        return transaction.db;
+    }
+
+    /**
+     * Begin a transaction on the current thread.
+     */
+    private TransactionContext beginTransaction(boolean applyingBatch, boolean callerIsSyncAdapter) {
+        TransactionContext transaction = new TransactionContext(mOpenHelper.getWritableDatabase(),
+                                                                applyingBatch, callerIsSyncAdapter);
+        transaction.db.beginTransaction();
+        mTransaction.set(transaction);
+        return transaction;
+    }
+
+    /**
+     * Mark the current thread's transaction successful, so it commits.
+     */
+    private void setTransactionSuccessful(TransactionContext transaction) {
+        transaction.db.setTransactionSuccessful();
+        transaction.successful = true;
+    }
+
+    /**
+     * End the current thread's transaction and, if it committed, notify the uris it changed.
+     */
+    private void endTransaction(TransactionContext transaction) {
+        try {
+            transaction.db.endTransaction();
+        } finally {
+            mTransaction.remove();
+        }
+        if (transaction.successful) {
+            onEndTransaction(transaction.changedUris, transaction.deferredUris,
+                             transaction.callerIsSyncAdapter);
+        }
+    }
+
     private boolean applyingBatch() {
-        return mApplyingBatch.get() != null && mApplyingBatch.get();
+        TransactionContext transaction = mTransaction.get();
+        return transaction != null && transaction.applyingBatch;
     }
 
     @Override
@@ -93,16 +280,13 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch       = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            TransactionContext transaction = beginTransaction(false, callerIsSyncAdapter);
             try {
                 result = insertInTransaction(uri, values);
-                mDb.setTransactionSuccessful();
+                setTransactionSuccessful(transaction);
             } finally {
-                mDb.endTransaction();
+                endTransaction(transaction);
             }
-
-            onEndTransaction(callerIsSyncAdapter);
         } else {
             result = insertInTransaction(uri, values);
         }
@@ -111,21 +295,29 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
-        int     numValues           = values.length;
-        boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransaction();
+        ProviderMetrics metrics   = sMetrics;
+        long            startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+
+        int                numValues           = values.length;
+        boolean            atomic              = isBatchAtomic();
+        boolean            callerIsSyncAdapter = isCallerSyncAdapter(uri);
+        TransactionContext transaction         = beginTransaction(false, callerIsSyncAdapter);
         try {
             for (ContentValues value : values) {
                 insertInTransaction(uri, value);
-                mDb.yieldIfContendedSafely();
+                if (!atomic) {
+                    transaction.db.yieldIfContendedSafely();
+                }
             }
-            mDb.setTransactionSuccessful();
+            setTransactionSuccessful(transaction);
         } finally {
-            mDb.endTransaction();
+            endTransaction(transaction);
         }
 
-        onEndTransaction(callerIsSyncAdapter);
+        if (metrics.isEnabled()) {
+            metrics.record(ProviderMetrics.Operation.BULK_INSERT, getMetricsTable(uri), getInsertSqlShape(uri),
+                           System.nanoTime() - startTime, numValues);
+        }
         return numValues;
     }
 
@@ -135,17 +327,13 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch       = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            TransactionContext transaction = beginTransaction(false, callerIsSyncAdapter);
             try {
-                count = updateInTransaction(uri, values, selection, selectionArgs
-                                           );
-                mDb.setTransactionSuccessful();
+                count = updateInTransaction(uri, values, selection, selectionArgs);
+                setTransactionSuccessful(transaction);
             } finally {
-                mDb.endTransaction();
+                endTransaction(transaction);
             }
-
-            onEndTransaction(callerIsSyncAdapter);
         } else {
             count = updateInTransaction(uri, values, selection, selectionArgs);
         }
@@ -159,78 +347,191 @@ public abstract class AbstractSQLiteProvider extends ContentProvider {
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch       = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            TransactionContext transaction = beginTransaction(false, callerIsSyncAdapter);
             try {
                 count = deleteInTransaction(uri, selection, selectionArgs);
-                mDb.setTransactionSuccessful();
+                setTransactionSuccessful(transaction);
             } finally {
-                mDb.endTransaction();
+                endTransaction(transaction);
             }
-
-            onEndTransaction(callerIsSyncAdapter);
         } else {
             count = deleteInTransaction(uri, selection, selectionArgs);
         }
         return count;
     }
 
+    /**
+     * Apply operations in a single transaction. Unlike ContentProvider.applyBatch, there is no
+     * limit on the number of operations between yield points, see isBatchAtomic.
+     */
     @NonNull
     @Override
     public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
     throws OperationApplicationException {
-        int     ypCount             = 0;
-        int     opCount             = 0;
-        boolean callerIsSyncAdapter = false;
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransaction();
+        ProviderMetrics metrics   = sMetrics;
+        long            startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+
+        final ContentProviderResult[] results     = new ContentProviderResult[operations.size()];
+        final Set<String>             tables      = metrics.isEnabled() ? new LinkedHashSet<String>() : null;
+        TransactionContext            transaction = beginTransaction(true, false);
         try {
-            mApplyingBatch.set(true);
-            final int                     numOperations = operations.size();
-            final ContentProviderResult[] results       = new ContentProviderResult[numOperations];
-            for (int i = 0; i < numOperations; i++) {
-                if (++opCount >= MAX_OPERATIONS_PER_YIELD_POINT) {
-                    throw new OperationApplicationException(
-                            "Too many content provider operations between yield points. "
-                            + "The maximum number of operations per yield point is "
-                            + MAX_OPERATIONS_PER_YIELD_POINT, ypCount);
-                }
-                final ContentProviderOperation operation = operations.get(i);
-                if (!callerIsSyncAdapter && isCallerSyncAdapter(operation.getUri())) {
-                    callerIsSyncAdapter = true;
-                }
-                if (i > 0 && operation.isYieldAllowed()) {
-                    opCount = 0;
-                    if (mDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY)) {
-                        ypCount++;
-                    }
-                }
-                results[i] = operation.apply(this, results, i);
-            }
-            mDb.setTransactionSuccessful();
+            applyInTransaction(transaction, operations.iterator(), results, tables);
+            setTransactionSuccessful(transaction);
             return results;
         } finally {
-            mApplyingBatch.set(false);
-            mDb.endTransaction();
-            onEndTransaction(callerIsSyncAdapter);
+            endTransaction(transaction);
+
+            if (metrics.isEnabled()) {
+                metrics.record(ProviderMetrics.Operation.APPLY_BATCH, null, batchSqlShape(tables),
+                               System.nanoTime() - startTime, operations.size());
+            }
+        }
+    }
+
+    /**
+     * Apply operations as they are produced, in a single transaction, without holding them all
+     * in memory. Use this for very large batches (e.g. a down-sync of 100k rows) from the same
+     * process, see StreamingBatch. Results are not kept, so operations can not use back
+     * references.
+     *
+     * @param operations The operations, consumed once.
+     * @return The number of operations applied.
+     * @throws OperationApplicationException If an operation fails, in which case none are applied
+     *                                       (or, if the batch is not atomic, none since the last
+     *                                       yield).
+     */
+    public int applyStreamingBatch(@NonNull Iterator<ContentProviderOperation> operations)
+    throws OperationApplicationException {
+        ProviderMetrics metrics   = sMetrics;
+        long            startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+        int             count     = 0;
+        Set<String>     tables    = metrics.isEnabled() ? new LinkedHashSet<String>() : null;
+
+        TransactionContext transaction = beginTransaction(true, false);
+        try {
+            count = applyInTransaction(transaction, operations, null, tables);
+            setTransactionSuccessful(transaction);
+            return count;
+        } finally {
+            endTransaction(transaction);
+
+            if (metrics.isEnabled()) {
+                metrics.record(ProviderMetrics.Operation.APPLY_BATCH, null, batchSqlShape(tables),
+                               System.nanoTime() - startTime, count);
+            }
+        }
+    }
+
+    /**
+     * Apply operations within transaction, yielding where allowed.
+     *
+     * @param results Where to store the result of each operation, or null to not keep them.
+     * @param tables  Where to collect the tables the operations write to, for metrics, or null.
+     * @return The number of operations applied.
+     */
+    private int applyInTransaction(TransactionContext transaction,
+                                   Iterator<ContentProviderOperation> operations,
+                                   @Nullable ContentProviderResult[] results,
+                                   @Nullable Set<String> tables)
+    throws OperationApplicationException {
+        final int     chunkSize = getBatchChunkSize();
+        final boolean atomic    = isBatchAtomic();
+
+        int i       = 0;        // The index of the operation
+        int opCount = 0;        // Operations since the last yield point
+        while (operations.hasNext()) {
+            final ContentProviderOperation operation = operations.next();
+            if (!transaction.callerIsSyncAdapter && isCallerSyncAdapter(operation.getUri())) {
+                transaction.callerIsSyncAdapter = true;
+            }
+            if (tables != null) {
+                tables.add(getMetricsTable(operation.getUri()));
+            }
+            if (i > 0 && (operation.isYieldAllowed() || (!atomic && opCount >= chunkSize))) {
+                opCount = 0;
+                transaction.db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+            }
+
+            if (results != null) {
+                results[i] = operation.apply(this, results, i);
+            } else {
+                operation.apply(this, NO_RESULTS, 0);
+            }
+            i++;
+            opCount++;
         }
+        return i;
     }
 
-    protected void onEndTransaction(boolean callerIsSyncAdapter) {
-        Set<Uri> changed;
-        synchronized (mChangedUris) {
-            changed = new HashSet<Uri>(mChangedUris);
-            mChangedUris.clear();
+    /**
+     * Notify the uris changed by a committed transaction, through the NotificationCoalescer.
+     *
+     * @param changed             The uris the transaction changed.
+     * @param deferred            The uris whose notification is held until flushNotifications.
+     * @param callerIsSyncAdapter True if the sync adapter made the changes, in which case they
+     *                            are not synced to the network.
+     */
+    protected void onEndTransaction(Set<Uri> changed, Set<Uri> deferred, boolean callerIsSyncAdapter) {
+        NotificationCoalescer notifier = getNotifier();
+        if (notifier != null) {
+            notifier.post(withSyncToNetwork(changed, callerIsSyncAdapter), false);
+            notifier.post(withSyncToNetwork(deferred, callerIsSyncAdapter), true);
+        }
+    }
+
+    private Map<Uri, Boolean> withSyncToNetwork(Set<Uri> uris, boolean callerIsSyncAdapter) {
+        Map<Uri, Boolean> result = new HashMap<>();
+        for (Uri uri : uris) {
+            result.put(uri, !callerIsSyncAdapter && syncToNetwork(uri));
         }
-        if (getContext() != null) {
-            ContentResolver resolver = getContext().getContentResolver();
-            for (Uri uri : changed) {
-                boolean syncToNetwork = !callerIsSyncAdapter && syncToNetwork(uri);
-                resolver.notifyChange(uri, null, syncToNetwork);
+        return result;
+    }
+
+    /**
+     * Notify every change whose notification is pending, including the deferred ones.
+     */
+    public void flushNotifications() {
+        NotificationCoalescer notifier = getNotifier();
+        if (notifier != null) {
+            notifier.flushDeferred();
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (BagginsContract.METHOD_FLUSH_NOTIFICATIONS.equals(method)) {
+            flushNotifications();
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    @Override
+    public void shutdown() {
+        flushNotifications();
+        super.shutdown();
+    }
+
+    /**
+     * @return The coalescer, or null if there is no context yet.
+     */
+    @Nullable
+    private synchronized NotificationCoalescer getNotifier() {
+        if (mNotifier == null) {
+            if (getContext() == null) {
+                Log.w(TAG,"AbstractSQLiteProvider getContext() returns null.");
+                return null;
             }
-        } else {
-            Log.w(TAG,"AbstractSQLiteProvider getContext() returns null.");
+            mNotifier = createNotificationCoalescer(getContext().getContentResolver());
         }
+        return mNotifier;
+    }
+
+    /**
+     * Override to configure how changes are notified.
+     */
+    protected NotificationCoalescer createNotificationCoalescer(ContentResolver resolver) {
+        return new NotificationCoalescer(resolver, NotificationCoalescer.DEFAULT_COLLAPSE_THRESHOLD, 0);
     }
 
     protected boolean syncToNetwork(Uri uri) {
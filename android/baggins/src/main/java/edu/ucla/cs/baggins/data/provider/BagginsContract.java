@@ -1,8 +1,10 @@
 package edu.ucla.cs.baggins.data.provider;
 
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.StringRes;
 
 /**
@@ -70,6 +72,22 @@ public class BagginsContract {
     }
 
 
+    /**
+     * The ContentProvider.call method which notifies the changes held back by
+     * QueryParameters.DEFER_NOTIFY, see flushNotifications.
+     */
+    public final static String METHOD_FLUSH_NOTIFICATIONS = "baggins_flush_notifications";
+
+    /**
+     * Notify the changes whose notification was deferred with QueryParameters.DEFER_NOTIFY,
+     * e.g. once at the end of a sync.
+     *
+     * @param client A client of the provider.
+     */
+    public static void flushNotifications(ContentProviderClient client) throws RemoteException {
+        client.call(METHOD_FLUSH_NOTIFICATIONS, null, null);
+    }
+
     public final static class QueryParameters {
         /**
          * An optional insert, update or delete URI parameter that allows the caller
@@ -80,6 +98,13 @@ public class BagginsContract {
          */
         public final static String CALLER_IS_SYNCADAPTER = "caller_is_syncadapter";
 
+        /**
+         * An optional insert, update or delete URI parameter. If true, observers are not notified
+         * of the change until BagginsContract.flushNotifications is called, so a sync adapter
+         * can notify once at the end of a sync instead of once per transaction.
+         */
+        public final static String DEFER_NOTIFY = "defer_notify";
+
         /**
          * A parameter for use when querying any table that allows specifying a limit on the number
          * of rows returned.
@@ -158,4 +183,24 @@ public class BagginsContract {
 
         public final static String CONTENT_NAME = "sync";
     }
+
+// ------------------------------------------------------------------------
+// Sync State Table
+// ------------------------------------------------------------------------
+
+    /**
+     * How far each down sync feed has synced for each account. The watermark is opaque to the
+     * client: it is whatever the server returned with the last changes it sent, and is sent back
+     * to ask for the changes since. See DownSync.
+     */
+    public final static class SyncState {
+        private SyncState() {
+        }
+
+        public final static String CONTENT_NAME = "baggins_sync_state";
+        public final static String _ID          = "_id";
+        public final static String ACCOUNT      = "account";
+        public final static String FEED         = "feed";
+        public final static String WATERMARK    = "watermark";
+    }
 }
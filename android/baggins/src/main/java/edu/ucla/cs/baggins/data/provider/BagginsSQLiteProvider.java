@@ -1,6 +1,7 @@
 package edu.ucla.cs.baggins.data.provider;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -12,13 +13,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import edu.ucla.cs.baggins.data.provider.metrics.ProviderMetrics;
 import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
 import edu.ucla.cs.baggins.data.provider.util.ContentProviderMatcher;
+import edu.ucla.cs.baggins.data.provider.util.ContentProviderMatcher.Route;
+import edu.ucla.cs.baggins.data.provider.util.NotificationCoalescer;
+import edu.ucla.cs.baggins.data.provider.util.StatementCache;
 import edu.ucla.cs.baggins.util.StaticUtil;
 
 public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
@@ -66,11 +72,29 @@ public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
             } catch (Exception e) {
                 Log.e(TAG,"Error: " + e);
             }
+
+            URI_MATCHER.addURI("/" + BagginsContract.SyncState.CONTENT_NAME,    // Down sync watermarks
+                               BagginsContract.SyncState.CONTENT_NAME,
+                               BagginsContract.SyncState.CONTENT_NAME,
+                               BagginsContract.SyncState._ID);
         }
 
         return URI_MATCHER;
     }
 
+    /**
+     * Resolve uri with a single match.
+     *
+     * @throws IllegalArgumentException If uri does not refer to a model table.
+     */
+    protected Route route(@NonNull Uri uri) {
+        Route route = matcher().resolve(uri);
+        if (route == null) {
+            throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+        return route;
+    }
+
     @Override
     @Nullable
     public String getType(@NonNull Uri uri) {
@@ -81,6 +105,23 @@ public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
     // Database Helper - For creating and updating Schema
     // ------------------------------------------------------------------------
     private ProviderDatabaseHelper mOpenHelper;
+    private ProviderDatabaseConfig mConfig = ProviderDatabaseConfig.defaults();
+    private Bundle                 mMetaData;
+
+    @Override
+    protected int getBatchChunkSize() {
+        return mConfig.getBatchChunkSize();
+    }
+
+    @Override
+    protected boolean isBatchAtomic() {
+        return mConfig.isBatchAtomic();
+    }
+
+    @Override
+    protected NotificationCoalescer createNotificationCoalescer(ContentResolver resolver) {
+        return NotificationCoalescer.fromMetaData(resolver, mMetaData);
+    }
 
     @Override
     public SQLiteOpenHelper getDatabaseHelper(Context context) {
@@ -100,7 +141,9 @@ public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
                                                           "<meta-data android:name=\"SQLiteDatabaseName\" android:value=\"<sqlite_db_name\" />");
                     }
                     Log.i(TAG, "DB Name: " + databaseName);
-                    mOpenHelper = new ProviderDatabaseHelper(context, databaseName);
+                    mMetaData = providerInfo.metaData;
+                    mConfig = ProviderDatabaseConfig.fromMetaData(mMetaData);
+                    mOpenHelper = new ProviderDatabaseHelper(context, databaseName, mConfig);
 
                 } catch (PackageManager.NameNotFoundException e) {
                     throw new NoDatabaseNameException("You must create meta-data within the <provider/> for BagginsSQLiteProvider in AndroidManifest.xml. e.g.: " + "\n" +
@@ -111,73 +154,124 @@ public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
         }
     }
 
+    // ------------------------------------------------------------------------
+    // Compiled statements for INSERT
+    // ------------------------------------------------------------------------
+    private final StatementCache mStatementCache = new StatementCache(StatementCache.DEFAULT_MAX_SIZE);
+
+    /**
+     * @return The cache of compiled statements, for its hit and miss counts.
+     */
+    public StatementCache getStatementCache() {
+        return mStatementCache;
+    }
+
+    @Override
+    public void shutdown() {
+        mStatementCache.clear();
+        super.shutdown();
+    }
+
     // ------------------------------------------------------------------------
     // INSERT, UPDATE, DELETE and QUERY. These are all called from the parent
     // class SQLLiteContentProvider. That class opens a transaction and then
     // calls one of these methods.
     // ------------------------------------------------------------------------
 
-    @Override
     /**
      * Note that this version does a SQLite replace instead of insert. This is update or insert
+     * <p/>
+     * The table uri (not the row uri) is posted for notification, so a bulkInsert of many rows
+     * sends a single notification when its transaction ends.
      */
+    @Override
     public Uri insertInTransaction(Uri uri, ContentValues values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final SQLiteDatabase db = getTransactionDatabase();
+
 
+        ProviderMetrics metrics   = getMetrics();
+        long            startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+
+        String table = route(uri).tableName;
+        long   id    = mStatementCache.replace(db, table, values);
+        Uri    row   = ContentUris.withAppendedId(uri, id);
+        postNotifyUri(row);     // The row uri, so observers only re-fetch this row
+
+        if (metrics.isEnabled()) {
+            metrics.record(ProviderMetrics.Operation.INSERT, table, insertSqlShape(table), System.nanoTime() - startTime, 1);
+        }
+        return row;
+    }
 
-        String table = matcher().matchTable(uri);
-        long   id    = db.replaceOrThrow(table, null, values);
-        return ContentUris.withAppendedId(uri, id);
+    @Override
+    protected String getInsertSqlShape(Uri uri) {
+        return insertSqlShape(route(uri).tableName);
     }
 
     @Override
     public int updateInTransaction(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        final SQLiteDatabase db         = mOpenHelper.getWritableDatabase();
-        String               table      = matcher().matchTable(uri);
-        String               primaryKey = matcher().matchPrimaryKey(uri);
+        ProviderMetrics      metrics   = getMetrics();
+        long                 startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+        final SQLiteDatabase db        = getTransactionDatabase();
+        Route                route     = route(uri);
+        String               table     = route.tableName;
+        Uri                  notifyUri = getNotifyUri(uri, route, selection, selectionArgs);
+
+        if (route.isItem) {
+            selection = DatabaseUtils.concatenateWhere(selection, table + "." + route.primaryKey + " = ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(route.id)});
+        }
+        int count = db.update(table, values, selection, selectionArgs);
+        if (count > 0) {
+            postNotifyUri(notifyUri);
+        }
 
-        if (matcher().isItemType(uri)) {
-            selection = DatabaseUtils.concatenateWhere(selection, table + "." + primaryKey + " = ?");
-            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(ContentUris.parseId(uri))});
+        if (metrics.isEnabled()) {
+            metrics.record(ProviderMetrics.Operation.UPDATE, table, "UPDATE " + table + whereShape(selection),
+                           System.nanoTime() - startTime, count);
         }
-        return db.update(table, values, selection, selectionArgs);
+        return count;
     }
 
     @Override
     public int deleteInTransaction(Uri uri, String selection, String[] selectionArgs) {
-        final SQLiteDatabase db         = mOpenHelper.getWritableDatabase();
-        String               table      = matcher().matchTable(uri);
-        String               primaryKey = matcher().matchPrimaryKey(uri);
+        ProviderMetrics      metrics   = getMetrics();
+        long                 startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+        final SQLiteDatabase db        = getTransactionDatabase();
+        Route                route     = route(uri);
+        String               table     = route.tableName;
+        Uri                  notifyUri = getNotifyUri(uri, route, selection, selectionArgs);
+
+        if (route.isItem) { // If this is an item, add the selection.
+            selection = DatabaseUtils.concatenateWhere(selection, table + "." + route.primaryKey + " = ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(route.id)});
+        }
+        int count = db.delete(table, selection, selectionArgs);
+        if (count > 0) {
+            postNotifyUri(notifyUri);
+        }
 
-        if (matcher().isItemType(uri)) { // If this is an item, add the selection.
-            selection = DatabaseUtils.concatenateWhere(selection, table + "." + primaryKey + " = ?");
-            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(ContentUris.parseId(uri))});
+        if (metrics.isEnabled()) {
+            metrics.record(ProviderMetrics.Operation.DELETE, table, "DELETE FROM " + table + whereShape(selection),
+                           System.nanoTime() - startTime, count);
         }
-        return db.delete(table, selection, selectionArgs);
+        return count;
     }
 
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        final SQLiteDatabase db         = mOpenHelper.getReadableDatabase();
-        final String         limit      = uri.getQueryParameter(BagginsContract.QueryParameters.LIMIT);
-        final String         groupBy    = uri.getQueryParameter(BagginsContract.QueryParameters.GROUP_BY);
-        String               table      = matcher().matchTable(uri);
-        String               primaryKey = matcher().matchPrimaryKey(uri);
-
-
-        if (matcher().isItemType(uri)) {  // If this is an item, add the selection.
-            selection = DatabaseUtils.concatenateWhere(selection, table + "." + primaryKey + " = ?");
-            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(ContentUris.parseId(uri))});
-        }
-
-        Log.i(TAG, "URI: " + uri);
-        Log.i(TAG, "TABLE: " + table);
-        if (projection != null) {
-            Log.i(TAG, "Projection: " + TextUtils.join(",", projection));
-        }
-        Log.i(TAG, "Selection: " + selection);
-        if (selectionArgs != null) {
-            Log.i(TAG, "Selection Args: " + TextUtils.join(",", selectionArgs));
+        final ProviderMetrics metrics   = getMetrics();
+        final long            startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+        final SQLiteDatabase  db        = mOpenHelper.getReadableDatabase();
+        final String          limit     = uri.getQueryParameter(BagginsContract.QueryParameters.LIMIT);
+        final String          groupBy   = uri.getQueryParameter(BagginsContract.QueryParameters.GROUP_BY);
+        Route                 route     = route(uri);
+        String                table     = route.tableName;
+
+
+        if (route.isItem) {  // If this is an item, add the selection.
+            selection = DatabaseUtils.concatenateWhere(selection, table + "." + route.primaryKey + " = ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{Long.toString(route.id)});
         }
 
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
@@ -185,14 +279,62 @@ public class BagginsSQLiteProvider extends AbstractSQLiteProvider {
         Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy,
                                  null, sortOrder, limit);
 
+        if (metrics.isEnabled() && cursor != null) {
+            int rowCount = cursor.getCount();       // Runs the query, so the time includes it
+            metrics.record(ProviderMetrics.Operation.QUERY, table,
+                           qb.buildQuery(projection, selection, groupBy, null, sortOrder, limit),
+                           System.nanoTime() - startTime, rowCount);
+        }
+
 //        if (getContext() != null) {
 //            cursor.setNotificationUri(getContext().getContentResolver(), BagginsContract.getAuthorityURI());
 //        }
         return cursor;
     }
 
+    /**
+     * @return The uri to notify of an update or delete: the row uri when the selection is the
+     * single predicate "_id = ?" (how models update one row, including temp ids the item uri
+     * cannot match), so observers re-fetch only that row. Otherwise uri.
+     */
+    private static Uri getNotifyUri(Uri uri, Route route, @Nullable String selection,
+                                    @Nullable String[] selectionArgs) {
+        if (route.isItem || selection == null || selectionArgs == null || selectionArgs.length != 1) {
+            return uri;
+        }
+        String predicate = selection.replace(" ", "");
+        if (!predicate.equals(route.primaryKey + "=?") &&
+            !predicate.equals(route.tableName + "." + route.primaryKey + "=?")) {
+            return uri;
+        }
+        try {
+            return ContentUris.withAppendedId(uri, Long.parseLong(selectionArgs[0]));
+        } catch (NumberFormatException e) {
+            return uri;
+        }
+    }
+
+    /**
+     * @return The SQL of insertInTransaction with its columns and values left out.
+     */
+    private static String insertSqlShape(String table) {
+        return "INSERT OR REPLACE INTO " + table;
+    }
+
+    /**
+     * @return The WHERE clause of a SQL shape for metrics, empty if there is no selection.
+     */
+    private static String whereShape(@Nullable String selection) {
+        return TextUtils.isEmpty(selection) ? "" : " WHERE " + selection;
+    }
+
     @Override
     public boolean isCallerSyncAdapter(Uri uri) {
         return uri.getBooleanQueryParameter(edu.ucla.cs.baggins.data.provider.BagginsContract.QueryParameters.CALLER_IS_SYNCADAPTER, false);
     }
+
+    @Override
+    public boolean isDeferNotify(Uri uri) {
+        return uri.getBooleanQueryParameter(BagginsContract.QueryParameters.DEFER_NOTIFY, false);
+    }
 }
@@ -0,0 +1,182 @@
+package edu.ucla.cs.baggins.data.provider;
+
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+/**
+ * How ProviderDatabaseHelper opens the SQLite database. Read from the meta-data of the
+ * BagginsSQLiteProvider in AndroidManifest.xml, next to SQLiteDatabaseName:
+ * <pre>
+ * &lt;provider android:name="edu.ucla.cs.baggins.data.provider.BagginsSQLiteProvider" ...&gt;
+ *     &lt;meta-data android:name="SQLiteDatabaseName" android:value="my_db" /&gt;
+ *     &lt;meta-data android:name="SQLiteWriteAheadLogging" android:value="true" /&gt;
+ *     &lt;meta-data android:name="SQLiteSynchronous" android:value="NORMAL" /&gt;
+ *     &lt;meta-data android:name="SQLiteCacheSize" android:value="-8192" /&gt;
+ *     &lt;meta-data android:name="SQLiteMmapSize" android:value="33554432" /&gt;
+ * &lt;/provider&gt;
+ * </pre>
+ * Every entry except SQLiteDatabaseName is optional, SQLite's default is used for any which is
+ * missing.
+ */
+public class ProviderDatabaseConfig {
+
+    /**
+     * true to open the database in write-ahead logging mode, so reads (e.g. the UI querying
+     * the provider) run in parallel with a long write transaction (e.g. a sync applyBatch)
+     * instead of waiting for it. Android sizes the pool of read connections itself.
+     */
+    public final static String META_WRITE_AHEAD_LOGGING = "SQLiteWriteAheadLogging";
+
+    /**
+     * PRAGMA synchronous: OFF, NORMAL or FULL. NORMAL is safe with write-ahead logging and
+     * saves an fsync per transaction.
+     */
+    public final static String META_SYNCHRONOUS = "SQLiteSynchronous";
+
+    /**
+     * PRAGMA cache_size: pages if positive, KiB if negative.
+     */
+    public final static String META_CACHE_SIZE = "SQLiteCacheSize";
+
+    /**
+     * PRAGMA mmap_size in bytes. 0 disables memory mapped I/O.
+     */
+    public final static String META_MMAP_SIZE = "SQLiteMmapSize";
+
+    /**
+     * false to let a large applyBatch yield (committing what it has applied so far if another
+     * thread is waiting) every SQLiteBatchChunkSize operations. Defaults to true: a batch is
+     * all-or-nothing. See AbstractSQLiteProvider.isBatchAtomic.
+     */
+    public final static String META_BATCH_ATOMIC = "SQLiteBatchAtomic";
+
+    /**
+     * The number of batch operations between automatic yield points when SQLiteBatchAtomic
+     * is false.
+     */
+    public final static String META_BATCH_CHUNK_SIZE = "SQLiteBatchChunkSize";
+
+    private final boolean mWriteAheadLogging;
+    private final String  mSynchronous;
+    private final Long    mCacheSize;
+    private final Long    mMmapSize;
+    private final boolean mBatchAtomic;
+    private final int     mBatchChunkSize;
+
+    /**
+     * @param writeAheadLogging True to enable write-ahead logging.
+     * @param synchronous       OFF, NORMAL, FULL or null for the default.
+     * @param cacheSize         The cache_size or null for the default.
+     * @param mmapSize          The mmap_size or null for the default.
+     */
+    public ProviderDatabaseConfig(boolean writeAheadLogging, @Nullable String synchronous,
+                                  @Nullable Long cacheSize, @Nullable Long mmapSize) {
+        this(writeAheadLogging, synchronous, cacheSize, mmapSize,
+             true, AbstractSQLiteProvider.DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * @param writeAheadLogging True to enable write-ahead logging.
+     * @param synchronous       OFF, NORMAL, FULL or null for the default.
+     * @param cacheSize         The cache_size or null for the default.
+     * @param mmapSize          The mmap_size or null for the default.
+     * @param batchAtomic       False to let batches yield every batchChunkSize operations.
+     * @param batchChunkSize    The operations between automatic yield points.
+     */
+    public ProviderDatabaseConfig(boolean writeAheadLogging, @Nullable String synchronous,
+                                  @Nullable Long cacheSize, @Nullable Long mmapSize,
+                                  boolean batchAtomic, int batchChunkSize) {
+        if (batchChunkSize < 1) {
+            throw new IllegalArgumentException(META_BATCH_CHUNK_SIZE + " must be positive, not " + batchChunkSize);
+        }
+        if (synchronous != null &&
+            !synchronous.equals("OFF") && !synchronous.equals("NORMAL") && !synchronous.equals("FULL")) {
+            throw new IllegalArgumentException(META_SYNCHRONOUS + " must be OFF, NORMAL or FULL, not " + synchronous);
+        }
+        mWriteAheadLogging = writeAheadLogging;
+        mSynchronous = synchronous;
+        mCacheSize = cacheSize;
+        mMmapSize = mmapSize;
+        mBatchAtomic = batchAtomic;
+        mBatchChunkSize = batchChunkSize;
+    }
+
+    /**
+     * @return A config which leaves every setting at SQLite's default.
+     */
+    public static ProviderDatabaseConfig defaults() {
+        return new ProviderDatabaseConfig(false, null, null, null);
+    }
+
+    /**
+     * @param metaData The meta-data of the provider, may be null.
+     * @return The config described by metaData.
+     */
+    public static ProviderDatabaseConfig fromMetaData(@Nullable Bundle metaData) {
+        if (metaData == null) {
+            return defaults();
+        }
+        String synchronous = metaData.getString(META_SYNCHRONOUS);
+        Long   chunkSize   = getLong(metaData, META_BATCH_CHUNK_SIZE);
+        return new ProviderDatabaseConfig(metaData.getBoolean(META_WRITE_AHEAD_LOGGING, false),
+                                          synchronous == null ? null : synchronous.toUpperCase(),
+                                          getLong(metaData, META_CACHE_SIZE),
+                                          getLong(metaData, META_MMAP_SIZE),
+                                          metaData.getBoolean(META_BATCH_ATOMIC, true),
+                                          chunkSize == null ? AbstractSQLiteProvider.DEFAULT_BATCH_CHUNK_SIZE
+                                                            : chunkSize.intValue());
+    }
+
+    /**
+     * meta-data values are parsed as Integer, Float, Boolean or String depending on how they
+     * look, so read numbers from whatever type they ended up as.
+     */
+    private static Long getLong(Bundle metaData, String key) {
+        Object value = metaData.get(key);
+        if (value == null) {
+            return null;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(key + " must be a number, not " + value);
+            }
+        }
+    }
+
+    public boolean isWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    @Nullable
+    public String getSynchronous() {
+        return mSynchronous;
+    }
+
+    @Nullable
+    public Long getCacheSize() {
+        return mCacheSize;
+    }
+
+    @Nullable
+    public Long getMmapSize() {
+        return mMmapSize;
+    }
+
+    public boolean isBatchAtomic() {
+        return mBatchAtomic;
+    }
+
+    public int getBatchChunkSize() {
+        return mBatchChunkSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderDatabaseConfig {wal=" + mWriteAheadLogging + " synchronous=" + mSynchronous +
+               " cacheSize=" + mCacheSize + " mmapSize=" + mMmapSize +
+               " batchAtomic=" + mBatchAtomic + " batchChunkSize=" + mBatchChunkSize + "}";
+    }
+}
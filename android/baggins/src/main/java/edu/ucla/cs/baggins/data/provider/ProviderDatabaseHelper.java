@@ -4,33 +4,42 @@ package edu.ucla.cs.baggins.data.provider;
  * Created by Ethan L. Schreiber on 10/13/15.
  */
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import edu.ucla.cs.baggins.data.provider.model.annotations.AnnotationMissingException;
 import edu.ucla.cs.baggins.data.provider.model.annotations.ClientColumn;
 import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
 import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata;
 import edu.ucla.cs.baggins.util.StaticUtil;
 
 /**
@@ -43,19 +52,44 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
      */
     public static final  int    DATABASE_VERSION = 1;
     private final static String TAG              = "db_helper";
+
+    /**
+     * The table storing the schema fingerprint of each model table. See getSchemaFingerprint.
+     */
+    public static final String SCHEMA_TABLE              = "baggins_schema";
+    public static final String SCHEMA_COLUMN_TABLE_NAME  = "table_name";
+    public static final String SCHEMA_COLUMN_FINGERPRINT = "fingerprint";
+
+    /**
+     * Bump this when the way tables are reconciled changes, so every table is reconciled again.
+     */
+    private static final int SCHEMA_FINGERPRINT_VERSION = 2;
     /**
      * Stupid SQLiteOpenHelper doesn't give me access to context.
      */
     private Context mContext;
 
+    /**
+     * How to configure the connection, see ProviderDatabaseConfig.
+     */
+    private final ProviderDatabaseConfig mConfig;
+
     // ------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------
     public ProviderDatabaseHelper(Context context, String databaseName) {
+        this(context, databaseName, ProviderDatabaseConfig.defaults());
+    }
+
+    public ProviderDatabaseHelper(Context context, String databaseName, ProviderDatabaseConfig config) {
         super(context, databaseName, null, DATABASE_VERSION);
         mContext = context;
-        Log.i(TAG, "Instantiate Database Helper: " + databaseName);
-        // setWriteAheadLoggingEnabled(true);
+        mConfig = config;
+        Log.i(TAG, "Instantiate Database Helper: " + databaseName + " " + config);
+
+        if (config.isWriteAheadLogging() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);      // Before API 16 this is done in onOpen
+        }
     }
 
 
@@ -67,6 +101,11 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
      * Each time the database is opened, we compare the domain objects to the DB to make sure they
      * are the same. Since the domain objects (Classes extending BagginsDomainObject which are
      * annotated @ClientTable) define the sqlite databases, they have to match
+     * <p/>
+     * To keep opening cheap, the fingerprint of each model (see getSchemaFingerprint) is compared
+     * to the fingerprint stored in the schema table when the table was last reconciled. Only
+     * tables whose fingerprint changed are compared column by column, so opening a database
+     * whose models have not changed costs a single query.
      *
      * @param db
      */
@@ -75,64 +114,136 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
         // db.execSQL("pragma foreign_keys = true");
 
         Log.i(TAG, "Open DB");
-        Set<String> dbTableNames = getAllTableNames(db);
+        configure(db);
+        createSyncStateTable(db);
 
         try {
-            // Iterate through domain objects
-            Log.i(TAG, "Iterate through domain Objects");
+            Map<String, String>                storedFingerprints = getStoredFingerprints(db);
+            List<Class<BagginsDomainModel<?>>> changedModels      = new ArrayList<>();
 
             for (Class<BagginsDomainModel<?>> modelClass : StaticUtil.getAllModelClasses(mContext)) {
-                String domainTableName = getTableName(modelClass);
-                Log.i(TAG, "-----------------------------------------");
-                Log.i(TAG, "   Domain Table Name: " + domainTableName);
-                if (dbTableNames.contains(domainTableName)) {                               // If the db contains a table for this domain model
+                String fingerprint = getSchemaFingerprint(modelClass);
+                if (!fingerprint.equals(storedFingerprints.get(getTableName(modelClass)))) {
+                    changedModels.add(modelClass);
+                }
+            }
 
-                    Log.i(TAG, "   " + domainTableName + " exists in SQLite");
-                    // Compare the domain table to the existing table
-                    boolean                       recreateTable = false;  // Do we need to drop and recreate the table?
-                    Map<String, SQLiteColumnInfo> dbColumns     = getColumnInfo(db, domainTableName);   // Get the db column info
-                    Map<String, SQLiteColumnInfo> modelColumns  = getColumnInfo(modelClass);            // Get the model column info
+            if (changedModels.isEmpty()) {
+                Log.i(TAG, "Schema fingerprints match, skipping reconciliation.");
+                return;
+            }
 
-                    Log.i(TAG, "Iterate through fields in domain model.");
-                    for (SQLiteColumnInfo domainColumn : modelColumns.values()) {                       // Iterate through domain column info
-                        if (domainColumn.type == SQLiteType.MANY_TO_MANY) {                             // Many to Many is treated differently
+            Set<String> dbTableNames = getAllTableNames(db);
 
+            // Iterate through domain objects whose schema changed
+            Log.i(TAG, "Iterate through " + changedModels.size() + " changed domain Objects");
 
+            for (Class<BagginsDomainModel<?>> modelClass : changedModels) {
+                db.beginTransaction();      // A failed migration leaves the old table untouched
+                try {
+                    reconcileTable(db, modelClass, dbTableNames);
+                    reconcileIndexes(db, modelClass);
+                    storeFingerprint(db, modelClass);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error: " + e);
+        }
+    }
 
-                        } else if (dbColumns.containsKey(domainColumn.name)) {                    // If it exists in the db (same column name)
-                            SQLiteColumnInfo dbColumn = dbColumns.remove(domainColumn.name);      // Get the DB version of the column
-                            Log.i(TAG, "      Column: " + domainColumn + " exists.");
+    /**
+     * Compare the table for modelClass in SQLite to the model, adding columns, or migrating the
+     * table as needed. Call this inside a transaction.
+     *
+     * @param db           The SQLite database connection.
+     * @param modelClass   The model class to reconcile.
+     * @param dbTableNames The names of the tables which exist in SQLite.
+     */
+    protected void reconcileTable(SQLiteDatabase db, Class<BagginsDomainModel<?>> modelClass, Set<String> dbTableNames) {
+        String domainTableName = getTableName(modelClass);
+        Log.i(TAG, "-----------------------------------------");
+        Log.i(TAG, "   Domain Table Name: " + domainTableName);
+        if (dbTableNames.contains(domainTableName)) {                               // If the db contains a table for this domain model
 
-                            if (domainColumn.type != dbColumn.type) {       // If the type changed,
-                                Log.i(TAG, "      " + dbColumn + " type changed, recreate table");
-                                recreateTable = true;                       // we need to recreate
-                                break;                                      // Can break this for loop
-                            }
-                        } else {
-                            Log.i(TAG, "      Column: " + domainColumn + " does not exist, creating.");
+            Log.i(TAG, "   " + domainTableName + " exists in SQLite");
+            // Compare the domain table to the existing table
+            boolean                       migrateTable = false;  // Do we need to copy into a new table?
+            Map<String, SQLiteColumnInfo> dbColumns    = getColumnInfo(db, domainTableName);   // Get the db column info
+            Map<String, SQLiteColumnInfo> modelColumns = getColumnInfo(modelClass);            // Get the model column info
+            List<SQLiteColumnInfo>        newColumns   = new ArrayList<>();                    // Columns to add
 
-                            addColumn(db, domainTableName, domainColumn);   // Add the new column
-                        }
-                    }
+            Log.i(TAG, "Iterate through fields in domain model.");
+            for (SQLiteColumnInfo domainColumn : modelColumns.values()) {                       // Iterate through domain column info
+                if (domainColumn.type == SQLiteType.MANY_TO_MANY) {                             // Many to Many is treated differently
 
-                    if (recreateTable ||             // If a field type changed
-                        !dbColumns.isEmpty()) {      // Or we removed a field from the domain model
-                        Log.i(TAG, "Recreating table");
-                        Log.i(TAG, "Dropping existing table " + domainTableName);
-                        db.execSQL("DROP TABLE IF EXISTS " + domainTableName);  // Drop table
 
-                        Log.i(TAG, "Create table " + domainTableName + " again.");
-                        createTable(db, modelClass);                            // Create table
-                    }
 
+                } else if (dbColumns.containsKey(domainColumn.name)) {                    // If it exists in the db (same column name)
+                    SQLiteColumnInfo dbColumn = dbColumns.get(domainColumn.name);         // Get the DB version of the column
+                    Log.i(TAG, "      Column: " + domainColumn + " exists.");
+
+                    if (domainColumn.type != dbColumn.type) {       // If the type changed,
+                        Log.i(TAG, "      " + dbColumn + " type changed, migrate table");
+                        migrateTable = true;                        // we need to migrate
+                    }
                 } else {
-                    Log.i(TAG, "   Does not exist, creating");
-                    createTable(db, modelClass);     // Create table
+                    Log.i(TAG, "      Column: " + domainColumn + " does not exist, creating.");
+                    newColumns.add(domainColumn);
                 }
+            }
 
+            if (!modelColumns.keySet().containsAll(dbColumns.keySet())) {    // If we removed a field from the domain model
+                Log.i(TAG, "      A column was removed, migrate table");
+                migrateTable = true;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error: " + e);
+
+            if (migrateTable) {
+                migrateTable(db, modelClass, dbColumns, modelColumns);  // Copies and adds columns
+            } else {
+                for (SQLiteColumnInfo column : newColumns) {
+                    addColumn(db, domainTableName, column);             // Add the new column
+                }
+            }
+
+        } else {
+            Log.i(TAG, "   Does not exist, creating");
+            createTable(db, modelClass);     // Create table
+        }
+    }
+
+    /**
+     * Apply mConfig to the connection. PRAGMAs only apply to the connection they are run on,
+     * which is the primary (write) connection. Read connections opened for write-ahead logging
+     * keep SQLite's defaults for cache_size and mmap_size.
+     */
+    protected void configure(SQLiteDatabase db) {
+        if (mConfig.isWriteAheadLogging() && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        if (mConfig.getSynchronous() != null) {
+            pragma(db, "synchronous = " + mConfig.getSynchronous());
+        }
+        if (mConfig.getCacheSize() != null) {
+            pragma(db, "cache_size = " + mConfig.getCacheSize());
+        }
+        if (mConfig.getMmapSize() != null) {
+            pragma(db, "mmap_size = " + mConfig.getMmapSize());
+        }
+    }
+
+    /**
+     * Run a PRAGMA. Some PRAGMAs return a row, which execSQL does not allow, so use rawQuery.
+     */
+    private void pragma(SQLiteDatabase db, String pragma) {
+        Log.i(TAG, "PRAGMA " + pragma);
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            c.moveToFirst();                        // Step the statement so it runs
+        } finally {
+            c.close();
         }
     }
 
@@ -145,6 +256,8 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
         try {
             for (Class<BagginsDomainModel<?>> modelClass : StaticUtil.getAllModelClasses(mContext)) {
                 createTable(db, modelClass);                                // Create the table in SQLite
+                reconcileIndexes(db, modelClass);                           // Create its indexes
+                storeFingerprint(db, modelClass);                           // So onOpen can skip it
             }
         } catch (IOException e) {
             Log.e(TAG, "Error: " + e);
@@ -196,6 +309,98 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(sql);
     }
 
+    /**
+     * Migrate the table for modelClass to the columns of the model without losing its rows
+     * (including rows which have not been synced yet). The new table is created under a
+     * temporary name, the columns which exist in both are copied over (cast to the new type if
+     * the type changed), then the old table is dropped and the new one renamed. Columns removed
+     * from the model are dropped, columns added to the model are NULL.
+     * <p/>
+     * Call this inside a transaction so a failure leaves the old table untouched.
+     *
+     * @param db           The SQLite database connection.
+     * @param modelClass   The model class to migrate the table to.
+     * @param dbColumns    The columns currently in SQLite.
+     * @param modelColumns The columns of the model.
+     */
+    protected void migrateTable(SQLiteDatabase db,
+                                Class<BagginsDomainModel<?>> modelClass,
+                                Map<String, SQLiteColumnInfo> dbColumns,
+                                Map<String, SQLiteColumnInfo> modelColumns) {
+
+        String tableName = getTableName(modelClass);
+        String tempName  = tableName + "_baggins_migrate";
+
+        Log.i(TAG, "Migrating table " + tableName);
+        db.execSQL("DROP TABLE IF EXISTS " + tempName);     // Left over from a failed migration
+        createTable(db, modelClass, tempName);
+
+        StringBuilder columns = new StringBuilder();      // The columns to insert into
+        StringBuilder select  = new StringBuilder();      // The expressions to select them from
+        for (SQLiteColumnInfo modelColumn : modelColumns.values()) {
+            SQLiteColumnInfo dbColumn = dbColumns.get(modelColumn.name);
+            if (dbColumn == null || modelColumn.type == SQLiteType.MANY_TO_MANY) {
+                continue;                                   // New column, leave NULL
+            }
+
+            if (columns.length() > 0) {
+                columns.append(", ");
+                select.append(", ");
+            }
+            columns.append(modelColumn.name);
+            if (dbColumn.type == modelColumn.type) {
+                select.append(modelColumn.name);
+            } else {
+                select.append("CAST(").append(modelColumn.name).append(" AS ").append(modelColumn.type).append(")");
+            }
+        }
+
+        if (columns.length() > 0) {
+            String sql = "INSERT INTO " + tempName + " (" + columns + ") SELECT " + select + " FROM " + tableName;
+            Log.i(TAG, "SQL: " + sql);
+            db.execSQL(sql);
+        }
+
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("ALTER TABLE " + tempName + " RENAME TO " + tableName);
+    }
+
+    /**
+     * Create the indexes declared by modelClass (see @ClientIndex) which do not exist, and drop
+     * the Baggins managed indexes on its table which are no longer declared.
+     *
+     * @param db         The SQLite database connection.
+     * @param modelClass The model class whose table to index.
+     */
+    protected void reconcileIndexes(SQLiteDatabase db, Class<BagginsDomainModel<?>> modelClass) {
+        String      tableName = getTableName(modelClass);
+        Set<String> dbIndexes = new HashSet<>();
+
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND tbl_name=? AND name LIKE ?",
+                               new String[]{tableName, ModelMetadata.IndexMetadata.PREFIX + "%"});
+        try {
+            while (c.moveToNext()) {
+                dbIndexes.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        for (ModelMetadata.IndexMetadata index : ModelMetadata.of(modelClass).getIndexes()) {
+            if (!dbIndexes.remove(index.name)) {
+                String sql = "CREATE " + (index.unique ? "UNIQUE " : "") + "INDEX " + index.name +
+                             " ON " + tableName + "(" + TextUtils.join(", ", index.columns) + ")";
+                Log.i(TAG, "SQL: " + sql);
+                db.execSQL(sql);
+            }
+        }
+
+        for (String indexName : dbIndexes) {                // No longer declared
+            Log.i(TAG, "Dropping index " + indexName);
+            db.execSQL("DROP INDEX IF EXISTS " + indexName);
+        }
+    }
+
     /**
      * Given a class which is annotated as ClientTable.class, creates a
      * table based on the class.
@@ -203,9 +408,20 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
      * @param modelClass
      */
     protected void createTable(SQLiteDatabase db, Class<BagginsDomainModel<?>> modelClass) {
+        createTable(db, modelClass, getTableName(modelClass));
+    }
+
+    /**
+     * Given a class which is annotated as ClientTable.class, creates a table named tableName
+     * based on the class.
+     *
+     * @param modelClass
+     * @param tableName  The name of the table to create.
+     */
+    protected void createTable(SQLiteDatabase db, Class<BagginsDomainModel<?>> modelClass, String tableName) {
 
         StringBuffer sb = new StringBuffer("CREATE TABLE ");        // Create the SQL statement
-        sb.append(getTableName(modelClass)).append("(\n");          // Get the name of the table
+        sb.append(tableName).append("(\n");                         // The name of the table
 
         // Iterate through the fields
         boolean isFirst = true;                                         // Don't prepend "," before first
@@ -286,15 +502,134 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
                 if (!tableName.toLowerCase().startsWith("sqlite_") &&
                     !tableName.toLowerCase().startsWith("sqlite_")) {
                     list.add(tableName);
-                    c.moveToNext();
                 } else {
                     Log.i(TAG, "Index Name: " + c.getString(0) + " ignored.");
                 }
+                c.moveToNext();     // sqlite_autoindex_* indexes used to loop forever here
             }
         }
+        c.close();
         return list;
     }
 
+    // ------------------------------------------------------------------------
+    // Sync state
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create the table of down sync watermarks if it does not exist. A (account, feed) pair has
+     * one row, so replacing the row for a pair advances its watermark.
+     */
+    protected void createSyncStateTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + BagginsContract.SyncState.CONTENT_NAME + "(" +
+                   BagginsContract.SyncState._ID + " INTEGER PRIMARY KEY, " +
+                   BagginsContract.SyncState.ACCOUNT + " TEXT NOT NULL, " +
+                   BagginsContract.SyncState.FEED + " TEXT NOT NULL, " +
+                   BagginsContract.SyncState.WATERMARK + " TEXT, " +
+                   "UNIQUE (" + BagginsContract.SyncState.ACCOUNT + ", " + BagginsContract.SyncState.FEED + "))");
+    }
+
+    // ------------------------------------------------------------------------
+    // Schema fingerprints
+    // ------------------------------------------------------------------------
+
+    /**
+     * Create the schema table if it does not exist.
+     */
+    protected void createSchemaTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SCHEMA_TABLE + "(" +
+                   SCHEMA_COLUMN_TABLE_NAME + " TEXT PRIMARY KEY, " +
+                   SCHEMA_COLUMN_FINGERPRINT + " TEXT NOT NULL)");
+    }
+
+    /**
+     * Read the fingerprint stored for each table, creating the schema table if it does not exist.
+     *
+     * @param db The sqlite db
+     * @return A map from table name to the fingerprint of the model it was last reconciled with.
+     */
+    protected Map<String, String> getStoredFingerprints(SQLiteDatabase db) {
+        Map<String, String> fingerprints = new HashMap<>();
+
+        Cursor c;
+        try {
+            c = db.query(SCHEMA_TABLE, new String[]{SCHEMA_COLUMN_TABLE_NAME, SCHEMA_COLUMN_FINGERPRINT},
+                         null, null, null, null, null);
+        } catch (SQLiteException e) {
+            Log.i(TAG, "No " + SCHEMA_TABLE + " table, creating.");
+            createSchemaTable(db);
+            return fingerprints;
+        }
+
+        try {
+            while (c.moveToNext()) {
+                fingerprints.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Store the current fingerprint of modelClass in the schema table.
+     */
+    protected void storeFingerprint(SQLiteDatabase db, Class<BagginsDomainModel<?>> modelClass) {
+        createSchemaTable(db);
+
+        ContentValues values = new ContentValues(2);
+        values.put(SCHEMA_COLUMN_TABLE_NAME, getTableName(modelClass));
+        values.put(SCHEMA_COLUMN_FINGERPRINT, getSchemaFingerprint(modelClass));
+        db.insertWithOnConflict(SCHEMA_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * A hash of everything about modelClass which determines its SQLite table: the table name,
+     * the name and SQLiteType of each column and the indexes. If the fingerprint is the same as the one
+     * stored when the table was last reconciled, the table does not need to be checked.
+     * <p/>
+     * Columns and indexes are hashed in name order, since the field order depends on whether the
+     * generated adapter is used and on the order of the source, neither of which changes the table.
+     *
+     * @param modelClass The model class.
+     * @return The fingerprint as a hex string.
+     */
+    protected String getSchemaFingerprint(Class<BagginsDomainModel<?>> modelClass) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(SCHEMA_FINGERPRINT_VERSION).append('|').append(getTableName(modelClass));
+        for (SQLiteColumnInfo column : new TreeMap<>(getColumnInfo(modelClass)).values()) {
+            sb.append('|').append(column.name).append(' ').append(column.type);
+            if (column.isPrimaryKey) {
+                sb.append(" PK");
+            }
+        }
+        List<String> indexNames = new ArrayList<>();
+        for (ModelMetadata.IndexMetadata index : ModelMetadata.of(modelClass).getIndexes()) {
+            indexNames.add(index.name);
+        }
+        Collections.sort(indexNames);
+        for (String indexName : indexNames) {
+            sb.append("|index ").append(indexName);
+        }
+        return sha1(sb.toString());
+    }
+
+    /**
+     * @return The SHA-1 of value as a hex string.
+     */
+    private static String sha1(String value) {
+        try {
+            byte[]        digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex    = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException("Unable to compute schema fingerprint: " + e, e);
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Fields for parsing BagginsDomainObjects
     // ------------------------------------------------------------------------
@@ -352,7 +687,7 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
     /**
      * This enum represent the possible types for a SQLite Column
      */
-    protected enum SQLiteType {
+    public enum SQLiteType {
         NULL("NULL"), INTEGER("INTEGER"), REAL("REAL"), TEXT("TEXT"), BLOB("BLOB"), MANY_TO_MANY("MANY_TO_MANY");
 
         /**
@@ -546,21 +881,14 @@ final public class ProviderDatabaseHelper extends SQLiteOpenHelper {
      * @return A Map with key being the column name and value being the column info.
      */
     protected Map<String, SQLiteColumnInfo> getColumnInfo(Class<BagginsDomainModel<?>> modelClass) {
-        Map<String, SQLiteColumnInfo> columns = new HashMap<>();
+        Map<String, SQLiteColumnInfo> columns = new LinkedHashMap<>();
 
         try {
-            // Iterate through the fields
-            boolean isFirst = true;                                         // Don't prepend "," before first
-            for (Field field : getFieldsUpTo(modelClass, Object.class)) {   // Iterate through all fields in class
-                if (field.isAnnotationPresent(ClientColumn.class)) {        // If field is annotated as ClientColumn.class
+            // Iterate through the @ClientColumn fields, which ModelMetadata resolves once per class
+            for (ModelMetadata.ColumnMetadata column : ModelMetadata.of(modelClass).getColumns()) {
+                boolean isNotNull = false; // In the future, we could use annotations to determine
 
-                    String     columnName = field.getAnnotation(ClientColumn.class).value();
-                    SQLiteType columnType = SQLiteType.toSQLiteType(field);
-                    boolean    isNotNull  = false; // In the future, we could use annotations to determine
-                    boolean    isPK       = columnName.equals(BagginsDomainModel._ID);
-
-                    columns.put(columnName, new SQLiteColumnInfo(columnName, columnType, isNotNull, isPK));
-                }
+                columns.put(column.name, new SQLiteColumnInfo(column.name, column.sqliteType, isNotNull, column.isPrimaryKey));
             }
         } catch (Throwable t) {
             Log.e(TAG, "Error getting column info from BagginsDomainObject: " + t.toString());
@@ -0,0 +1,76 @@
+package edu.ucla.cs.baggins.data.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Applies a stream of ContentProviderOperations without building one ArrayList of all of them,
+ * e.g. the rows of a large down-sync.
+ * <p/>
+ * If the provider of the client is an AbstractSQLiteProvider in this process, the operations are
+ * applied by applyStreamingBatch in a single transaction, all-or-nothing. Otherwise they are sent
+ * with applyBatch in chunks of chunkSize operations, each chunk being all-or-nothing.
+ * <p/>
+ * Results are not kept, so operations can not use back references.
+ */
+public class StreamingBatch {
+    public final static String TAG = "streaming_batch";
+
+    private final ContentProviderClient mClient;
+    private final int                   mChunkSize;
+
+    /**
+     * @param client    The client of the provider to apply the operations to.
+     * @param chunkSize The number of operations per applyBatch call when the provider is not
+     *                  local.
+     */
+    public StreamingBatch(@NonNull ContentProviderClient client, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive, not " + chunkSize);
+        }
+        mClient = client;
+        mChunkSize = chunkSize;
+    }
+
+    public StreamingBatch(@NonNull ContentProviderClient client) {
+        this(client, AbstractSQLiteProvider.DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * @param operations The operations, consumed once.
+     * @return The number of operations applied.
+     */
+    public int apply(@NonNull Iterator<ContentProviderOperation> operations)
+    throws RemoteException, OperationApplicationException {
+        ContentProvider provider = mClient.getLocalContentProvider();
+        if (provider instanceof AbstractSQLiteProvider) {
+            return ((AbstractSQLiteProvider) provider).applyStreamingBatch(operations);
+        }
+
+        Log.d(TAG, "Provider is not local, applying in chunks of " + mChunkSize);
+        ArrayList<ContentProviderOperation> chunk = new ArrayList<>(mChunkSize);
+        int                                 count = 0;
+        while (operations.hasNext()) {
+            chunk.add(operations.next());
+            if (chunk.size() == mChunkSize || !operations.hasNext()) {
+                mClient.applyBatch(chunk);
+                count += chunk.size();
+                chunk.clear();
+            }
+        }
+        return count;
+    }
+
+    public int apply(@NonNull Iterable<ContentProviderOperation> operations)
+    throws RemoteException, OperationApplicationException {
+        return apply(operations.iterator());
+    }
+}
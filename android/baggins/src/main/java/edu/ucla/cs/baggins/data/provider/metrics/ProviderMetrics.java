@@ -0,0 +1,52 @@
+package edu.ucla.cs.baggins.data.provider.metrics;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A hook the provider reports every operation to. Install one with
+ * AbstractSQLiteProvider.setMetrics, e.g. a RecordingProviderMetrics while profiling.
+ * <p/>
+ * The provider checks isEnabled() before timing an operation or building its SQL shape, so a
+ * disabled hook (the default, DISABLED) costs one call per operation.
+ */
+public interface ProviderMetrics {
+
+    /**
+     * The provider operations which are recorded.
+     */
+    enum Operation {
+        QUERY, INSERT, BULK_INSERT, UPDATE, DELETE, APPLY_BATCH
+    }
+
+    /**
+     * Records nothing.
+     */
+    ProviderMetrics DISABLED = new ProviderMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void record(Operation operation, @Nullable String table, @Nullable String sqlShape,
+                           long elapsedNanos, int rowCount) {
+        }
+    };
+
+    /**
+     * @return True if operations should be timed and recorded.
+     */
+    boolean isEnabled();
+
+    /**
+     * Record an operation. Only called when isEnabled() is true.
+     *
+     * @param operation    The operation.
+     * @param table        The table, or null if the operation spans tables (APPLY_BATCH).
+     * @param sqlShape     The SQL with ? placeholders for arguments, or null if not known.
+     * @param elapsedNanos How long the operation took.
+     * @param rowCount     The number of rows returned, inserted, updated or deleted.
+     */
+    void record(Operation operation, @Nullable String table, @Nullable String sqlShape,
+                long elapsedNanos, int rowCount);
+}
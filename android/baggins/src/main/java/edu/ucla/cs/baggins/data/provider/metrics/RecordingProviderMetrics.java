@@ -0,0 +1,223 @@
+package edu.ucla.cs.baggins.data.provider.metrics;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A ProviderMetrics which keeps, per table and operation, a count, the total rows and a latency
+ * histogram, plus a sampled log of slow operations with their SQL shape.
+ * <p/>
+ * Latencies are bucketed by powers of two microseconds: bucket i counts operations which took
+ * [2^i, 2^(i+1)) us. Call dump() to write everything to logcat.
+ */
+public class RecordingProviderMetrics implements ProviderMetrics {
+
+    public final static String TAG = "provider_metrics";
+
+    /**
+     * The number of histogram buckets. The last bucket holds everything slower than ~4.5 min.
+     */
+    public final static int BUCKETS = 28;
+
+    /**
+     * The counters of one operation on one table.
+     */
+    public final static class Stats {
+        public long   count      = 0;
+        public long   rows       = 0;
+        public long   totalNanos = 0;
+        public long   maxNanos   = 0;
+        public long[] histogram  = new long[BUCKETS];
+
+        /**
+         * @return The upper bound in microseconds of the bucket holding the percentile p (0-100).
+         */
+        public long percentileMicros(double p) {
+            long target = (long) Math.ceil(count * p / 100.0);
+            long seen   = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= target && seen > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " rows=" + rows +
+                   " avg=" + (count == 0 ? 0 : totalNanos / count / 1000) + "us" +
+                   " p50<" + percentileMicros(50) + "us" +
+                   " p99<" + percentileMicros(99) + "us" +
+                   " max=" + maxNanos / 1000 + "us";
+        }
+    }
+
+    /**
+     * An operation slower than the slow threshold.
+     */
+    public final static class SlowOperation {
+        public final Operation operation;
+        public final String    table;
+        public final String    sqlShape;
+        public final long      elapsedNanos;
+        public final int       rowCount;
+        public final long      timestamp;
+
+        SlowOperation(Operation operation, String table, String sqlShape, long elapsedNanos, int rowCount) {
+            this.operation = operation;
+            this.table = table;
+            this.sqlShape = sqlShape;
+            this.elapsedNanos = elapsedNanos;
+            this.rowCount = rowCount;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + table + " " + elapsedNanos / 1000000 + "ms rows=" + rowCount + " sql=" + sqlShape;
+        }
+    }
+
+    private final    Map<String, Stats> mStats = new TreeMap<>();     // Keyed by table + operation
+    private final    SlowOperation[]    mSlowLog;
+    private final    long               mSlowNanos;
+    private final    double             mSampleRate;
+    private final    Random             mRandom   = new Random();
+    private          int                mSlowNext = 0;
+    private          int                mSlowSize = 0;
+    private volatile boolean            mEnabled  = true;          // Read unlocked on every provider call
+    private          boolean            mLogAll   = false;
+
+    /**
+     * Record with a 50ms slow threshold, logging every slow operation, keeping the last 64.
+     */
+    public RecordingProviderMetrics() {
+        this(50, 1.0, 64);
+    }
+
+    /**
+     * @param slowMillis  Operations taking at least this long are slow.
+     * @param sampleRate  The fraction (0 to 1) of slow operations to keep in the slow log.
+     * @param slowLogSize The number of slow operations to keep.
+     */
+    public RecordingProviderMetrics(long slowMillis, double sampleRate, int slowLogSize) {
+        mSlowNanos = slowMillis * 1000000;
+        mSampleRate = sampleRate;
+        mSlowLog = new SlowOperation[slowLogSize];
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @param logAll True to also log every operation to logcat as it is recorded.
+     */
+    public synchronized void setLogAll(boolean logAll) {
+        mLogAll = logAll;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    @Override
+    public synchronized void record(Operation operation, @Nullable String table, @Nullable String sqlShape,
+                                    long elapsedNanos, int rowCount) {
+        String key   = table + " " + operation;
+        Stats  stats = mStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+
+        stats.count++;
+        stats.rows += rowCount;
+        stats.totalNanos += elapsedNanos;
+        stats.maxNanos = Math.max(stats.maxNanos, elapsedNanos);
+        stats.histogram[bucket(elapsedNanos)]++;
+
+        if (mLogAll) {
+            Log.i(TAG, operation + " " + table + " " + elapsedNanos / 1000 + "us rows=" + rowCount + " sql=" + sqlShape);
+        }
+
+        if (elapsedNanos >= mSlowNanos && mRandom.nextDouble() < mSampleRate) {
+            SlowOperation slow = new SlowOperation(operation, table, sqlShape, elapsedNanos, rowCount);
+            Log.w(TAG, "Slow: " + slow);
+            mSlowLog[mSlowNext] = slow;
+            mSlowNext = (mSlowNext + 1) % mSlowLog.length;
+            mSlowSize = Math.min(mSlowSize + 1, mSlowLog.length);
+        }
+    }
+
+    /**
+     * @return The histogram bucket of elapsedNanos.
+     */
+    private static int bucket(long elapsedNanos) {
+        long micros = elapsedNanos / 1000;
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return A copy of the stats, keyed by "[table] [OPERATION]".
+     */
+    public synchronized Map<String, Stats> getStats() {
+        Map<String, Stats> copy = new TreeMap<>();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            Stats stats = new Stats();
+            Stats from  = entry.getValue();
+            stats.count = from.count;
+            stats.rows = from.rows;
+            stats.totalNanos = from.totalNanos;
+            stats.maxNanos = from.maxNanos;
+            stats.histogram = from.histogram.clone();
+            copy.put(entry.getKey(), stats);
+        }
+        return copy;
+    }
+
+    /**
+     * @return The slow operations, oldest first.
+     */
+    public synchronized List<SlowOperation> getSlowOperations() {
+        List<SlowOperation> slow  = new ArrayList<>(mSlowSize);
+        int                 start = (mSlowNext - mSlowSize + mSlowLog.length) % mSlowLog.length;
+        for (int i = 0; i < mSlowSize; i++) {
+            slow.add(mSlowLog[(start + i) % mSlowLog.length]);
+        }
+        return slow;
+    }
+
+    /**
+     * Forget everything recorded.
+     */
+    public synchronized void reset() {
+        mStats.clear();
+        mSlowNext = 0;
+        mSlowSize = 0;
+    }
+
+    /**
+     * Write the stats and the slow log to logcat.
+     */
+    public void dump() {
+        for (Map.Entry<String, Stats> entry : getStats().entrySet()) {
+            Log.i(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+        for (SlowOperation slow : getSlowOperations()) {
+            Log.i(TAG, "Slow: " + slow);
+        }
+    }
+}
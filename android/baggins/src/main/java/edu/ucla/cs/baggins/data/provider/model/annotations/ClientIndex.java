@@ -0,0 +1,40 @@
+package edu.ucla.cs.baggins.data.provider.model.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a SQLite index on a model table. The index is created, and dropped when the
+ * annotation is removed, when ProviderDatabaseHelper reconciles the table.
+ * <p/>
+ * On a @ClientColumn field, indexes that column:
+ * <pre>
+ *     &#64;ClientIndex
+ *     &#64;ClientColumn("email")
+ *     String mEmail;
+ * </pre>
+ * On a @ClientTable class, indexes the columns listed in value, in that order. Use
+ * {@link ClientIndexes} to declare more than one composite index on a class:
+ * <pre>
+ *     &#64;ClientTable("child")
+ *     &#64;ClientIndex({"parent_id", "birthday"})
+ *     public class Child extends BagginsDomainModel&lt;Child&gt; {
+ * </pre>
+ * Every table also gets an index on _status, see BagginsDomainModel.STATUS.
+ */
+@Retention(RetentionPolicy.RUNTIME) // Can be used reflectively
+@Target({ElementType.FIELD, ElementType.TYPE}) // On a column or the class
+public @interface ClientIndex {
+
+    /**
+     * The column names to index. Leave empty on a field to index the field's column.
+     */
+    String[] value() default {};
+
+    /**
+     * True to create a UNIQUE index.
+     */
+    boolean unique() default false;
+}
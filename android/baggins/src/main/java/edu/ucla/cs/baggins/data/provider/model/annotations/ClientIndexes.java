@@ -0,0 +1,15 @@
+package edu.ucla.cs.baggins.data.provider.model.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares more than one composite {@link ClientIndex} on a @ClientTable class.
+ */
+@Retention(RetentionPolicy.RUNTIME) // Can be used reflectively
+@Target(ElementType.TYPE)   // On class level
+public @interface ClientIndexes {
+    ClientIndex[] value();
+}
@@ -14,4 +14,10 @@ import java.lang.annotation.Target;
 @Inherited                      // Required
 public @interface ClientTable {
     String value();
+
+    /**
+     * The number of models of this table to keep in memory for find(id) and load(id), see ModelCache.
+     * 0, the default, disables the cache.
+     */
+    int cacheSize() default 0;
 }
@@ -4,6 +4,7 @@ import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.os.RemoteException;
@@ -14,18 +15,18 @@ import android.util.Log;
 import com.google.gson.annotations.SerializedName;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.ucla.cs.baggins.data.provider.BagginsContract;
 import edu.ucla.cs.baggins.data.provider.model.annotations.AnnotationMissingException;
 import edu.ucla.cs.baggins.data.provider.model.annotations.ClientColumn;
-import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
 import edu.ucla.cs.baggins.data.provider.model.base.exceptions.ObjectNotFoundException;
 
 /**
@@ -49,8 +50,9 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
 
     public final static String TAG = "baggins_domain_model";
 
-    public final static String _ID    = "_id";
-    public final static String STATUS = "_status";
+    public final static String _ID          = "_id";
+    public final static String STATUS       = "_status";
+    public final static String TOUCHED_TIME = "touched_time";
 
     /**
      * A value for status meaning the domain model was inserted at touched_time.
@@ -73,13 +75,12 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
     public char STATUS_SYNCED = 'S';
 
     /**
-     * The list of ContentProvider Fields cached so it is only constructed once. This is done
-     * so that the order remains consistent. In practice, this should happen anyway, but sisnce
-     * Class.getDeclaredFields() does not guarantee an order, this guarantees it.
+     * The reflection metadata for this model class. It is built once per class and shared by
+     * every instance, so the order of the fields remains consistent.
      * <p/>
-     * NEVER READ FROM THIS DIRECTLY, use getClientFields()
+     * NEVER READ FROM THIS DIRECTLY, use getMetadata()
      */
-    private List<Field> mClientFields = null;
+    private ModelMetadata mMetadata = null;
 
 
     /**
@@ -99,6 +100,20 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
     @SerializedName("status")
     public String status;
 
+    /**
+     * When this model was last written locally (see nextTouchedTime). It changes with every
+     * save and update, so up sync can tell that a row was written again while it was being sent.
+     * 0 for a row written before the column existed.
+     */
+    @ClientColumn(TOUCHED_TIME)
+    @SerializedName("touched_time")
+    public long touchedTime;
+
+    /**
+     * The last value returned by nextTouchedTime.
+     */
+    private final static AtomicLong sLastTouchedTime = new AtomicLong();
+
 
     /**
      * The context.
@@ -140,8 +155,7 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
     public T createModel() {
         // See http://stackoverflow.com/questions/299998/instantiating-object-of-type-parameter
         try {
-            Constructor<T> ctor = ((Class<T>) ((T) this).getClass()).getConstructor();
-            return ctor.newInstance();
+            return (T) getMetadata().newInstance();   // The constructor is cached in the metadata
         } catch (Throwable t) {
             Log.e(TAG, "Error instantiating createModel(Class<T>): " + t);
             throw new RuntimeException(t);
@@ -230,12 +244,18 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      * @return The name of the content provider table associated with this model.
      */
     public String getContentProviderTableName() {
-        ClientTable clientTable = this.getClass().getAnnotation(ClientTable.class);
-        if (clientTable == null) {
-            throw new AnnotationMissingException("All domain objects extending BagginsDomainModel" +
-                                                 " must contain the class annotation @ClientTable(\"table name\")");
+        return getMetadata().getTableName();
+    }
+
+    /**
+     * @return The reflection metadata for this model class.
+     * @throws AnnotationMissingException If the class is not annotated with @ClientTable.
+     */
+    protected ModelMetadata getMetadata() throws AnnotationMissingException {
+        if (mMetadata == null) {
+            mMetadata = ModelMetadata.of(getClass());
         }
-        return clientTable.value();
+        return mMetadata;
     }
 
 
@@ -304,7 +324,9 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      * @throws RuntimeException If the field is not accessible.
      */
     protected Object getValue(Field f) {
-        f.setAccessible(true);               // Set accessible since it is likely private
+        if (!f.isAccessible()) {
+            f.setAccessible(true);           // Set accessible since it is likely private
+        }
         try {
             return f.get((T) this);
         } catch (IllegalAccessException e) {
@@ -320,53 +342,52 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      * then the returned cursor can be used to load this object.
      */
     protected String[] getClientNames() {
-        ArrayList<String> columns = new ArrayList<>();
-
-        // Iterate through all fields annotated with @ClientColumn
-        for (Field f : getClientFields()) {    // For each field
-            columns.add(getClientName(f));              // Add the column name
-        }
-
-        return (String[]) columns.toArray(new String[columns.size()]);
+        return getMetadata().getClientNames();
     }
 
     /**
      * @return A list of all Fields of this BagginsDomainModel which are annotated with @ClientColumn     .
      */
     protected List<Field> getClientFields() {
-        return getFields(ClientColumn.class);
+        return getMetadata().getClientFields();
     }
 
     /**
      * @return A list of all Fields of this BagginsDomainModel which are annotated with @SerializaedName.
      */
     protected List<Field> getSerializableFields() {
-        return getFields(SerializedName.class);
+        return getMetadata().getSerializableFields();
     }
 
     /**
-     * @return A list of all Fields of this BagginsDomainModel which are annotated with @ClientColumn     .
+     * @return A list of all Fields of this BagginsDomainModel which are annotated with annotation.
+     * ClientColumn and SerializedName are read from the cached metadata, any other annotation
+     * is looked up reflectively.
      */
     protected List<Field> getFields(Class<? extends Annotation> annotation) {
-        if (mClientFields == null) {
-            mClientFields = new ArrayList<>();
+        if (annotation == ClientColumn.class) {
+            return getClientFields();
+        } else if (annotation == SerializedName.class) {
+            return getSerializableFields();
+        }
 
-            // First iterate through BagginsDomainModel.class
-            for (Field f : BagginsDomainModel.class.getDeclaredFields()) {         // For each field
-                if (f.isAnnotationPresent(annotation)) {     // If its annotated as ClientColumn
-                    mClientFields.add(f);
-                }
+        List<Field> fields = new ArrayList<>();
+
+        // First iterate through BagginsDomainModel.class
+        for (Field f : BagginsDomainModel.class.getDeclaredFields()) {         // For each field
+            if (f.isAnnotationPresent(annotation)) {     // If its annotated with annotation
+                fields.add(f);
             }
+        }
 
-            // Now iterate through the subclass.
-            for (Field f : getClass().getDeclaredFields()) { // For each field
-                if (f.isAnnotationPresent(annotation)) {     // If its annotated as ClientColumn
-                    mClientFields.add(f);
-                }
+        // Now iterate through the subclass.
+        for (Field f : getClass().getDeclaredFields()) { // For each field
+            if (f.isAnnotationPresent(annotation)) {     // If its annotated with annotation
+                fields.add(f);
             }
         }
 
-        return mClientFields;
+        return fields;
     }
 
 
@@ -382,21 +403,100 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      * @param cursor The cursor to populate this model with.
      */
     public T load(Cursor cursor) {
+        return load(cursor, getMetadata().getColumnIndices(cursor));
+    }
 
-        for (Field f : getClientFields()) {
-            int columnIdx = cursor.getColumnIndex(getClientName(f));
-            if (columnIdx == -1) {
-                throw new RuntimeException("The column " + getClientName(f) + " for field " +
-                                           f.getName() + " does not exist.");
-            }
+    /**
+     * This method is for ContentProvider -> Model
+     * <p/>
+     * Load this model from a ContentProvider cursor whose column indices have already been
+     * resolved with ModelMetadata.getColumnIndices(cursor). Use this when loading many rows
+     * from the same cursor so the column lookups happen once instead of once per row.
+     *
+     * @param cursor        The cursor to populate this model with.
+     * @param columnIndices The cursor column index of each column, in column order.
+     */
+    public T load(Cursor cursor, int[] columnIndices) {
+        ModelAdapter<T> adapter = (ModelAdapter<T>) getMetadata().getAdapter();
+        if (adapter != null) {          // Use the generated adapter if there is one
+            adapter.load((T) this, cursor, columnIndices);
+            return (T) this;
+        }
+
+        List<ModelMetadata.ColumnMetadata> columns = getMetadata().getColumns();
 
-            setModelField((T) this, f, cursor, columnIdx);
+        for (int i = 0; i < columnIndices.length; i++) {
+            setModelField((T) this, columns.get(i).field, cursor, columnIndices[i]);
         }
 
         return (T) this;                // Return instance of the loaded BagginsDomainModel
     }
 
+    /**
+     * Load the model with id from the ContentProvider into this model.
+     * <p/>
+     * If the table has a cache (@ClientTable cacheSize), a cached row is copied into this model
+     * without a query.
+     *
+     * @param id The _id of the model.
+     * @return This model.
+     * @throws ObjectNotFoundException If there is no row with id.
+     * @throws RemoteException
+     */
     public T load(long id) throws ObjectNotFoundException, RemoteException {
+        if (getModelCache() == null) {
+            return loadFromProvider((T) this, id);
+        }
+        return copyFrom(find(id));
+    }
+
+    /**
+     * Find the model with id in the identity map of its table, loading it on a miss, so every
+     * lookup of the same row returns the same instance. Without a cache (@ClientTable cacheSize)
+     * this loads a new model each time.
+     * <p/>
+     * The returned model is shared. Treat it as read only and write changes with update.
+     *
+     * @param id The _id of the model.
+     * @return The shared model.
+     * @throws ObjectNotFoundException If there is no row with id.
+     * @throws RemoteException
+     */
+    public T find(long id) throws ObjectNotFoundException, RemoteException {
+        ModelCache<T> cache = getModelCache();
+        if (cache == null) {
+            return loadFromProvider(createModel(), id);
+        }
+
+        T model = cache.get(id);
+        if (model == null) {
+            long generation = cache.getGeneration();    // Before the query, see ModelCache.put
+            model = loadFromProvider(createModel(), id);
+            cache.put(id, model, generation);
+        }
+        return model;
+    }
+
+    /**
+     * Copy the column fields of model into this model.
+     *
+     * @return This model.
+     */
+    private T copyFrom(T model) {
+        try {
+            for (ModelMetadata.ColumnMetadata column : getMetadata().getColumns()) {
+                column.field.set(this, column.field.get(model));
+            }
+        } catch (IllegalAccessException e) {        // The fields are set accessible by ModelMetadata
+            throw new IllegalStateException(e);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Query the row with id and load it into model.
+     */
+    private T loadFromProvider(T model, long id) throws ObjectNotFoundException, RemoteException {
         String   selection     = _ID + " = ?";                     // Select by _ID
         String[] selectionArgs = new String[]{Long.toString(id)};  // Set the id
 
@@ -408,11 +508,24 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
             throw new ObjectNotFoundException(id);
         } else {
             cursor.moveToFirst();       // Get the first result
-            load(cursor);
+            model.load(cursor);
             cursor.close();
         }
         releaseClient();                // Release client if it was acquired
-        return (T) this;                // Return instance of the loaded BagginsDomainModel
+        return model;                   // Return instance of the loaded BagginsDomainModel
+    }
+
+    /**
+     * @return The identity map of this model's table, or null if @ClientTable has no cacheSize.
+     */
+    @Nullable
+    protected ModelCache<T> getModelCache() {
+        int cacheSize = getMetadata().getCacheSize();
+        if (cacheSize <= 0 || mContext == null) {
+            return null;
+        }
+        return ModelCache.forTable(getContentProviderTableName(), cacheSize,
+                                   mContext.getContentResolver(), getContentUri());
     }
 
 
@@ -468,6 +581,8 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
                 } else {
                     field.setChar(model, '\0');
                 }
+            } else if (fieldClass.isAssignableFrom(Date.class)) {  // Stored as millis by setContentValue
+                field.set(model, cursor.isNull(columnIdx) ? null : new Date(cursor.getLong(columnIdx)));
             } else {
                 throw new IllegalArgumentException("Error in BagginsDomainModel.setModelField(...), unknown type " +
                                                    fieldClass + " for field " + field.getDeclaringClass() + "#" + field.getType());
@@ -491,11 +606,17 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
 
         ContentValues values = new ContentValues();
 
+        ModelAdapter<T> adapter = (ModelAdapter<T>) getMetadata().getAdapter();
+        if (adapter != null) {          // Use the generated adapter if there is one
+            adapter.writeContentValues((T) this, values);
+            return values;
+        }
+
         // Iterate through all fields annotated with @ClientColumn and add to builder.
-        for (Field f : getClientFields()) {
-            setContentValue(values,             // The values to update
-                            getClientName(f),  // Get column name from field
-                            getValue(f));      // Get value from field
+        for (ModelMetadata.ColumnMetadata column : getMetadata().getColumns()) {
+            setContentValue(values,                 // The values to update
+                            column.name,            // Get column name from field
+                            getValue(column.field)); // Get value from field
         }
         return values;
     }
@@ -575,11 +696,17 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
 
         Map<String, String> postParams = new HashMap<>();
 
-        for (Field f : getClientFields()) {
+        ModelAdapter<T> adapter = (ModelAdapter<T>) getMetadata().getAdapter();
+        if (adapter != null) {          // Use the generated adapter if there is one
+            adapter.writePostParams((T) this, postParams);
+            return postParams;
+        }
+
+        for (ModelMetadata.ColumnMetadata column : getMetadata().getColumns()) {
 
-            setPostDataParam(postParams,        // The values to update
-                             getClientName(f),  // Get column name from field
-                             getValue(f));      // Get value from field
+            setPostDataParam(postParams,            // The values to update
+                             column.name,           // Get column name from field
+                             getValue(column.field)); // Get value from field
         }
         return postParams;
 
@@ -644,16 +771,90 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      */
     public Uri save() throws RemoteException {
 
-        // Set id as a new temp id, which is 1 smaller than any other temp id
-        String[] projection = new String[]{"MIN(" + _ID + ")"};
-        id = Math.min(-1, queryLong(projection, null, null, null, 0) - 1);
+        // Set id as a new temp id, which is smaller than any other temp id
+        id = getIdAllocator().next();
+        touchedTime = nextTouchedTime();
 
         ContentValues values = createContentValues();
         Uri           uri    = acquireClient().insert(getContentUri(), values);
         releaseClient();
+
+        ModelCache<T> cache = getModelCache();
+        if (cache != null) {
+            cache.invalidate(id);
+        }
         return uri;
     }
 
+    /**
+     * Inserts all of models into the ContentProvider with a single bulkInsert, so they are written
+     * in one transaction with one change notification instead of one round trip, transaction and
+     * notification per model. The transaction is all-or-nothing unless the provider overrides
+     * AbstractSQLiteProvider.isBatchAtomic to return false.
+     * <p/>
+     * Like save(), each model is given a new temp id. The ids are a contiguous block reserved
+     * from the LocalIdAllocator up front.
+     *
+     * @param models The models to insert. They are inserted through this model's client.
+     * @return The number of rows inserted.
+     * @throws RemoteException
+     */
+    public int saveAll(@NonNull Collection<? extends T> models) throws RemoteException {
+        if (models.isEmpty()) {
+            return 0;
+        }
+
+        // Reserve the block [firstId - models.size() + 1, firstId]
+        long firstId = getIdAllocator().reserve(models.size());
+
+        ContentValues[] values = new ContentValues[models.size()];
+        int             i      = 0;
+        for (T model : models) {
+            model.id = firstId - i;
+            model.touchedTime = nextTouchedTime();
+            values[i++] = model.createContentValues();
+        }
+
+        int count = acquireClient().bulkInsert(getContentUri(), values);
+        releaseClient();
+
+        ModelCache<T> cache = getModelCache();
+        if (cache != null) {
+            for (T model : models) {
+                cache.invalidate(model.id);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return A touched_time for a local write: the current time in milliseconds, but always
+     * greater than the last one returned in this process, so two writes never share one.
+     */
+    protected static long nextTouchedTime() {
+        while (true) {
+            long last = sLastTouchedTime.get();
+            long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (sLastTouchedTime.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * @return The temp id allocator of this model's table, seeded with MIN(_id) from the
+     * ContentProvider the first time it is used in this process.
+     * @throws RemoteException
+     */
+    protected LocalIdAllocator getIdAllocator() throws RemoteException {
+        LocalIdAllocator allocator = LocalIdAllocator.forTable(getContentProviderTableName());
+        if (!allocator.isSeeded()) {
+            String[] projection = new String[]{"MIN(" + _ID + ")"};
+            allocator.seed(queryLong(projection, null, null, null, 0));
+        }
+        return allocator;
+    }
+
     /**
      * Get a single long from a query.
      *
@@ -682,6 +883,9 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
 
     /**
      * Query from the SQLite DB. This returns rows whose status is NOT 'D'
+     * <p/>
+     * Every matching row is loaded into a model before this returns. For large results use
+     * queryCursor, which loads rows as you iterate.
      *
      * @param selection     A selection criteria to apply when filtering rows.
      *                      If {@code null} then all rows are included.
@@ -692,21 +896,167 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
      *                      If {@code null} then the provider is free to define the sort order.
      */
     public List<T> query(String selection, String[] selectionArgs, String sortOrder) throws RemoteException {
+        ModelCursor<T> cursor = queryCursor(selection, selectionArgs, sortOrder, false);
 
-        // --------------------------------------------------------------------
-        // Make sure we only query non-deleted fields
-        // --------------------------------------------------------------------
-        String   decoratedSelection;
-        String[] decoratedSelectionArgs;
+        List<T> models = new ArrayList<>(cursor.getCount());
+        for (T model : cursor) {            // Closes the cursor and releases the client at the end
+            models.add(model);
+        }
+        return models;
+    }
+
+    /**
+     * Query from the SQLite DB without loading the rows up front. This returns rows whose status
+     * is NOT 'D'. Rows are loaded into models as the returned ModelCursor is iterated, and the
+     * cursor is closed when iteration finishes. See ModelCursor.
+     *
+     * @param selection     A selection criteria to apply when filtering rows.
+     *                      If {@code null} then all rows are included.
+     * @param selectionArgs You may include ?s in selection, which will be replaced by
+     *                      the values from selectionArgs, in order that they appear in the selection.
+     *                      The values will be bound as Strings.
+     * @param sortOrder     How the rows in the cursor should be sorted.
+     *                      If {@code null} then the provider is free to define the sort order.
+     * @param flyweight     True to reuse a single model instance for every row.
+     */
+    public ModelCursor<T> queryCursor(String selection, String[] selectionArgs, String sortOrder,
+                                      boolean flyweight) throws RemoteException {
+        return queryCursor(getContentUri(), selection, selectionArgs, sortOrder, flyweight);
+    }
+
+    /**
+     * Observe the rows matching a query, see LiveQuery. Call start() on the result to load the
+     * rows, and close() when done.
+     *
+     * @param listener Receives the changes to the rows, on the main thread.
+     * @return The LiveQuery, not yet started.
+     */
+    public LiveQuery<T> observe(@Nullable String selection, @Nullable String[] selectionArgs,
+                                @Nullable String sortOrder, @NonNull LiveQuery.Listener<T> listener) {
+        T dao = createModel().connect(mContext, null);     // LiveQuery queries on its own thread
+        return new LiveQuery<>(dao, mContext.getContentResolver(), selection, selectionArgs, sortOrder,
+                               listener);
+    }
+
+    /**
+     * queryCursor against uri, which must be a URI of this model's table (e.g. with query
+     * parameters appended).
+     */
+    protected ModelCursor<T> queryCursor(Uri uri, String selection, String[] selectionArgs, String sortOrder,
+                                         boolean flyweight) throws RemoteException {
+
+        Cursor cursor = acquireClient().query(uri, getClientNames(),
+                                              decorateSelection(selection),
+                                              decorateSelectionArgs(selectionArgs),
+                                              sortOrder);
+        assertCursorNotNull(cursor);
+
+        return new ModelCursor<>(this, cursor, flyweight);
+    }
+
+    /**
+     * Get a page of rows ordered by _id. See page(String, String[], String, int, Page.Key).
+     *
+     * @param pageSize The maximum number of rows on the page.
+     * @param afterKey null for the first page, otherwise the getNextKey() of the previous page.
+     */
+    public Page<T> page(int pageSize, @Nullable Page.Key afterKey) throws RemoteException {
+        return page(null, null, _ID, pageSize, afterKey);
+    }
+
+    /**
+     * Get a page of rows whose status is NOT 'D', ordered by sortColumn and then _id.
+     * <p/>
+     * This uses keyset pagination rather than OFFSET: each page selects the rows after the last
+     * row of the previous page (sortColumn > ? OR (sortColumn = ? AND _id > ?)) with a LIMIT, so
+     * getting a deep page costs the same as getting the first one. Index sortColumn with
+     * @ClientIndex so SQLite can seek instead of sort. sortColumn should not contain NULLs, since
+     * NULL never compares greater than the key.
+     *
+     * @param selection     A selection criteria to apply when filtering rows, or null.
+     * @param selectionArgs The arguments for selection, or null.
+     * @param sortColumn    The column to sort on, e.g. _ID or "last_name".
+     * @param pageSize      The maximum number of rows on the page.
+     * @param afterKey      null for the first page, otherwise the getNextKey() of the previous page.
+     */
+    public Page<T> page(@Nullable String selection, @Nullable String[] selectionArgs,
+                        @NonNull String sortColumn, int pageSize, @Nullable Page.Key afterKey) throws RemoteException {
+
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive, not " + pageSize);
+        }
 
-        // First decorate the selection
+        boolean byId = sortColumn.equals(_ID);
+
+        // Select the rows after afterKey
+        if (afterKey != null) {
+            String   keySelection;
+            String[] keySelectionArgs;
+            if (byId) {
+                keySelection = _ID + " > ?";
+                keySelectionArgs = new String[]{Long.toString(afterKey.id)};
+            } else {
+                keySelection = "(" + sortColumn + " > ? OR (" + sortColumn + " = ? AND " + _ID + " > ?))";
+                keySelectionArgs = new String[]{afterKey.sortValue, afterKey.sortValue, Long.toString(afterKey.id)};
+            }
+            selection = (selection == null) ? keySelection : "(" + selection + ") AND " + keySelection;
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, keySelectionArgs);
+        }
+
+        String sortOrder = byId ? _ID + " ASC" : sortColumn + " ASC, " + _ID + " ASC";
+
+        // Ask for one extra row to know if there is another page
+        Uri uri = getContentUri().buildUpon()
+                                 .appendQueryParameter(BagginsContract.QueryParameters.LIMIT,
+                                                       Integer.toString(pageSize + 1))
+                                 .build();
+
+        ModelCursor<T> cursor = queryCursor(uri, selection, selectionArgs, sortOrder, false);
+        try {
+            int      count   = Math.min(cursor.getCount(), pageSize);
+            List<T>  models  = new ArrayList<>(count);
+            Page.Key nextKey = null;
+
+            for (int i = 0; i < count; i++) {
+                models.add(cursor.get(i));
+            }
+
+            if (cursor.getCount() > pageSize) {     // There is another page, remember the last row
+                T      last      = models.get(count - 1);
+                String sortValue = null;
+                if (!byId) {
+                    Cursor c = cursor.getCursor();  // Positioned at the last row by get(count - 1)
+                    sortValue = c.getString(c.getColumnIndexOrThrow(sortColumn));
+                }
+                nextKey = new Page.Key(sortValue, last.id);
+            }
+            return new Page<>(models, nextKey);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Make sure we only query non-deleted fields
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return selection with the status != 'D' predicate added. Pass the result of
+     * decorateSelectionArgs as the selection args.
+     */
+    protected String decorateSelection(@Nullable String selection) {
         if (selection == null) {
-            decoratedSelection = STATUS + " !=?";
+            return STATUS + " !=?";
         } else {
-            decoratedSelection = "(" + selection + ") AND (" + STATUS + "!=?)";
+            return "(" + selection + ") AND (" + STATUS + "!=?)";
         }
+    }
 
-        // Now decorate the selectionArgs
+    /**
+     * @return selectionArgs with the argument of the predicate added by decorateSelection.
+     */
+    protected String[] decorateSelectionArgs(@Nullable String[] selectionArgs) {
+        String[] decoratedSelectionArgs;
         if (selectionArgs == null) {
             decoratedSelectionArgs = new String[1];
         } else {
@@ -717,32 +1067,36 @@ public abstract class BagginsDomainModel<T extends BagginsDomainModel> {
             System.arraycopy(selectionArgs, 0, decoratedSelectionArgs, 0, selectionArgs.length);
         }
         decoratedSelectionArgs[decoratedSelectionArgs.length - 1] = Character.toString(STATUS_DELETE);
-
-        // --------------------------------------------------------------------
-        // Query the ContentProvider
-        // --------------------------------------------------------------------
-        Cursor cursor = acquireClient().query(getContentUri(), getClientNames(), decoratedSelection, decoratedSelectionArgs, sortOrder);
-
-        assertCursorNotNull(cursor);
-
-        List<T> models = new ArrayList<>(cursor.getCount());
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            T model = createModel();
-            model.load(cursor);
-            models.add(model);
-            cursor.moveToNext();            // Go to the next row.
-        }
-        cursor.close();
-
-        releaseClient();
-        return models;
+        return decoratedSelectionArgs;
     }
 
+    /**
+     * Update the selected rows and give them a new touched_time. Unless contentValues sets the
+     * status itself (e.g. delete), the rows are marked STATUS_UPDATE so the next up sync sends the
+     * change, including a change to a row whose insert is still being sent. Rows marked for
+     * deletion are then left alone, so they are still sent as deletes.
+     *
+     * @return The number of rows updated.
+     * @throws RemoteException
+     */
     public int update(ContentValues contentValues, String selection, String[] selectionArgs) throws RemoteException {
+        contentValues = new ContentValues(contentValues);
+        contentValues.put(TOUCHED_TIME, nextTouchedTime());
+        if (!contentValues.containsKey(STATUS)) {
+            setContentValue(contentValues, STATUS, STATUS_UPDATE);
+            selection = decorateSelection(selection);
+            selectionArgs = decorateSelectionArgs(selectionArgs);
+        }
+
         // Update the ContentProvider
         int count = acquireClient().update(getContentUri(), contentValues, selection, selectionArgs);
         releaseClient();
+
+        // The updated ids are not known, so drop the whole table (delete is an update too)
+        ModelCache<T> cache = getModelCache();
+        if (cache != null && count > 0) {
+            cache.invalidateAll();
+        }
         return count;
     }
 
@@ -0,0 +1,292 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query which stays up to date. Create one with BagginsDomainModel.observe, then start it.
+ * <p/>
+ * The rows are loaded once, then a ContentObserver on the table uri re-evaluates the query
+ * as the provider notifies changes:
+ * <p/>
+ * - A row uri (content://authority/table/id) re-fetches only that row, so a change to one row
+ * of a large list costs one single-row query.
+ * <p/>
+ * - A table uri (an update by selection, or many rows collapsed by the NotificationCoalescer)
+ * re-runs the whole query and compares it with the previous rows.
+ * <p/>
+ * Either way the listener gets a Diff of the inserted, updated and removed rows, on the main
+ * thread. Queries run on a background thread shared by every LiveQuery.
+ * <p/>
+ * Rows inserted by a diff are appended to getRows(), so the sort order only holds for the rows
+ * of the initial load. A listener which needs the order must sort.
+ *
+ * @param <T> The model class.
+ */
+public class LiveQuery<T extends BagginsDomainModel> implements Closeable {
+    public final static String TAG = "live_query";
+
+    /**
+     * Receives the changes to the rows of a LiveQuery.
+     */
+    public interface Listener<T extends BagginsDomainModel> {
+        /**
+         * Called on the main thread. The first call, after start, has every row inserted.
+         */
+        void onChanged(LiveQuery<T> query, Diff<T> diff);
+    }
+
+    /**
+     * The rows a re-evaluation inserted, updated and removed.
+     */
+    public static final class Diff<T> {
+        private final List<T>    mInserted;
+        private final List<T>    mUpdated;
+        private final List<Long> mRemoved;
+
+        Diff(List<T> inserted, List<T> updated, List<Long> removed) {
+            mInserted = Collections.unmodifiableList(inserted);
+            mUpdated = Collections.unmodifiableList(updated);
+            mRemoved = Collections.unmodifiableList(removed);
+        }
+
+        public List<T> getInserted() {
+            return mInserted;
+        }
+
+        public List<T> getUpdated() {
+            return mUpdated;
+        }
+
+        /**
+         * @return The ids of the rows which no longer match the query.
+         */
+        public List<Long> getRemoved() {
+            return mRemoved;
+        }
+
+        public boolean isEmpty() {
+            return mInserted.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
+    /**
+     * Runs the queries of every LiveQuery, created on first use.
+     */
+    private static Handler sWorker;
+
+    private final    T                      mDao;
+    private final    ContentResolver        mResolver;
+    private final    String                 mSelection;
+    private final    String[]               mSelectionArgs;
+    private final    String                 mSortOrder;
+    private final    Listener<T>            mListener;
+    private final    Handler                mMain   = new Handler(Looper.getMainLooper());
+    private final    LinkedHashMap<Long, T> mRows   = new LinkedHashMap<>();
+    private final    ContentObserver        mObserver;
+    private volatile boolean                mClosed = false;
+    private          boolean                mLoaded = false;    // Only used on the worker
+
+    /**
+     * Use BagginsDomainModel.observe.
+     *
+     * @param dao A model connected for querying, used only by this LiveQuery.
+     */
+    LiveQuery(T dao, ContentResolver resolver, @Nullable String selection, @Nullable String[] selectionArgs,
+              @Nullable String sortOrder, Listener<T> listener) {
+        mDao = dao;
+        mResolver = resolver;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mListener = listener;
+        mObserver = new ContentObserver(getWorker()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, @Nullable Uri uri) {
+                Long id = getRowId(uri);
+                if (id != null) {
+                    refetch(id);
+                } else {
+                    reload();
+                }
+            }
+        };
+    }
+
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
+
+    /**
+     * Load the rows and start observing changes. The listener gets every row as inserted.
+     */
+    public LiveQuery<T> start() {
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                // Registered on the worker, so any change is handled after this first load
+                // and the first diff has every row.
+                mResolver.registerContentObserver(mDao.getContentUri(), true, mObserver);
+                reload();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Stop observing changes.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        getWorker().post(new Runnable() {       // After start's registration, if it is pending
+            @Override
+            public void run() {
+                mResolver.unregisterContentObserver(mObserver);
+            }
+        });
+    }
+
+    /**
+     * @return A copy of the current rows.
+     */
+    public List<T> getRows() {
+        synchronized (mRows) {
+            return new ArrayList<>(mRows.values());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Re-evaluation, on the worker thread
+    // ------------------------------------------------------------------------
+
+    /**
+     * Re-fetch the row with id, O(1) in the number of rows.
+     */
+    private void refetch(long id) {
+        if (mClosed) {
+            return;
+        }
+        String   selection = DatabaseUtils.concatenateWhere(mSelection, BagginsDomainModel._ID + " = ?");
+        String[] args      = DatabaseUtils.appendSelectionArgs(mSelectionArgs, new String[]{Long.toString(id)});
+
+        List<T> found;
+        try {
+            found = mDao.query(selection, args, null);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error re-fetching row " + id + ": " + e);
+            return;
+        }
+
+        List<T>    inserted = new ArrayList<>();
+        List<T>    updated  = new ArrayList<>();
+        List<Long> removed  = new ArrayList<>();
+        synchronized (mRows) {
+            boolean existed = mRows.containsKey(id);
+            if (found.isEmpty()) {
+                if (existed) {
+                    mRows.remove(id);
+                    removed.add(id);
+                }
+            } else {
+                T row = found.get(0);
+                mRows.put(id, row);
+                (existed ? updated : inserted).add(row);
+            }
+        }
+        emit(new Diff<>(inserted, updated, removed), false);
+    }
+
+    /**
+     * Re-run the whole query and compare it with the previous rows.
+     */
+    private void reload() {
+        if (mClosed) {
+            return;
+        }
+        List<T> rows;
+        try {
+            rows = mDao.query(mSelection, mSelectionArgs, mSortOrder);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error reloading: " + e);
+            return;
+        }
+
+        List<T>    inserted = new ArrayList<>();
+        List<T>    updated  = new ArrayList<>();
+        List<Long> removed  = new ArrayList<>();
+        synchronized (mRows) {
+            Map<Long, T> previous = new LinkedHashMap<>(mRows);
+            mRows.clear();
+            for (T row : rows) {
+                mRows.put(row.id, row);
+                T old = previous.remove(row.id);
+                if (old == null) {
+                    inserted.add(row);
+                } else if (!old.createContentValues().equals(row.createContentValues())) {
+                    updated.add(row);
+                }
+            }
+            removed.addAll(previous.keySet());
+        }
+        emit(new Diff<>(inserted, updated, removed), !mLoaded);    // Always tell of the first load
+        mLoaded = true;
+    }
+
+    private void emit(final Diff<T> diff, boolean evenIfEmpty) {
+        if (diff.isEmpty() && !evenIfEmpty) {
+            return;
+        }
+        mMain.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    mListener.onChanged(LiveQuery.this, diff);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The id of a row uri, or null for the table uri (or no uri, before API 16).
+     */
+    @Nullable
+    private static Long getRowId(@Nullable Uri uri) {
+        if (uri == null || uri.getPathSegments().size() != 2) {
+            return null;
+        }
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
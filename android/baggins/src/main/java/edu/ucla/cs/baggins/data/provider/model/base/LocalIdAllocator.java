@@ -0,0 +1,91 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the negative temp ids given to rows inserted locally, until the server assigns
+ * them a real id. There is one allocator per table.
+ * <p/>
+ * The allocator is seeded once per process with the smallest _id in the table, then ids are
+ * handed out from an atomic counter: no query is needed per insert, and two threads saving at
+ * the same time never get the same id. This assumes the models of a table are only inserted
+ * from one process.
+ */
+public final class LocalIdAllocator {
+
+    /**
+     * The process wide allocators, keyed by table name.
+     */
+    private final static ConcurrentHashMap<String, LocalIdAllocator> sAllocators = new ConcurrentHashMap<>();
+
+    /**
+     * The next id to hand out. Only valid once seeded.
+     */
+    private final AtomicLong mNextId = new AtomicLong(-1);
+
+    private volatile boolean mSeeded = false;
+
+    private LocalIdAllocator() {
+    }
+
+    /**
+     * @param tableName The content provider table name.
+     * @return The allocator for tableName.
+     */
+    public static LocalIdAllocator forTable(String tableName) {
+        LocalIdAllocator allocator = sAllocators.get(tableName);
+        if (allocator == null) {
+            LocalIdAllocator created = new LocalIdAllocator();
+            allocator = sAllocators.putIfAbsent(tableName, created);
+            if (allocator == null) {
+                allocator = created;
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * @return True once seed has been called.
+     */
+    public boolean isSeeded() {
+        return mSeeded;
+    }
+
+    /**
+     * Seed the allocator with the smallest _id in the table. Only the first call has an effect.
+     *
+     * @param minId The smallest _id in the table, or 0 if the table is empty.
+     */
+    public synchronized void seed(long minId) {
+        if (!mSeeded) {
+            mNextId.set(Math.min(-1, minId - 1));
+            mSeeded = true;
+        }
+    }
+
+    /**
+     * @return The next temp id.
+     * @throws IllegalStateException If the allocator has not been seeded.
+     */
+    public long next() {
+        return reserve(1);
+    }
+
+    /**
+     * Reserve a contiguous block of count temp ids: [first - count + 1, first].
+     *
+     * @param count The number of ids to reserve.
+     * @return first, the largest id of the block.
+     * @throws IllegalStateException If the allocator has not been seeded.
+     */
+    public long reserve(int count) {
+        if (!mSeeded) {
+            throw new IllegalStateException("LocalIdAllocator must be seeded before allocating ids.");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive, not " + count);
+        }
+        return mNextId.getAndAdd(-count);
+    }
+}
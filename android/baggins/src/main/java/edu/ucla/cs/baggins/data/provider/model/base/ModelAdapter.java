@@ -0,0 +1,103 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.util.Map;
+
+/**
+ * Base class for the adapters generated by the baggins-compiler annotation processor. For each
+ * class annotated with @ClientTable, the processor generates a class named
+ * [ModelClass]$$BagginsAdapter in the same package which reads and writes the @ClientColumn fields
+ * directly (cursor.getString(idx), values.put(...)) instead of going through reflection.
+ * <p/>
+ * Columns are addressed by position. The position of each column is the order returned by
+ * getColumnNames(), which ModelMetadata adopts as its column order when an adapter is found.
+ * <p/>
+ * Fields the generated code can not reach (private fields, or fields of a type the processor does
+ * not know) are delegated back to the reflective helpers in BagginsDomainModel through the
+ * protected methods of this class.
+ *
+ * @param <T> The model class.
+ */
+public abstract class ModelAdapter<T extends BagginsDomainModel> {
+
+    /**
+     * The suffix appended to the binary name of the model class to get the adapter class name.
+     */
+    public final static String SUFFIX = "$$BagginsAdapter";
+
+    /**
+     * The metadata of the model class. Set by ModelMetadata when the adapter is attached.
+     */
+    private ModelMetadata mMetadata;
+
+    /**
+     * Called by ModelMetadata once the column order has been resolved.
+     */
+    final void attach(ModelMetadata metadata) {
+        mMetadata = metadata;
+    }
+
+    /**
+     * @return The @ClientColumn names, in the order the generated code addresses them.
+     */
+    public abstract String[] getColumnNames();
+
+    /**
+     * ContentProvider -> Model
+     *
+     * @param model         The model to populate.
+     * @param cursor        The cursor positioned at the row to read.
+     * @param columnIndices The cursor column index of each column, in column order.
+     */
+    public abstract void load(T model, Cursor cursor, int[] columnIndices);
+
+    /**
+     * Model -> ContentProvider
+     *
+     * @param model  The model to read from.
+     * @param values The values to populate.
+     */
+    public abstract void writeContentValues(T model, ContentValues values);
+
+    /**
+     * Model -> Post Params
+     *
+     * @param model      The model to read from.
+     * @param postParams The post params to populate.
+     */
+    public abstract void writePostParams(T model, Map<String, String> postParams);
+
+    // ------------------------------------------------------------------------
+    // Reflective fallbacks for the generated code
+    // ------------------------------------------------------------------------
+
+    /**
+     * Set the field of column from cursor using BagginsDomainModel.setModelField.
+     */
+    protected void setField(T model, int column, Cursor cursor, int columnIdx) {
+        model.setModelField(model, mMetadata.getColumns().get(column).field, cursor, columnIdx);
+    }
+
+    /**
+     * @return The value of the field of column, read reflectively.
+     */
+    protected Object getField(T model, int column) {
+        return model.getValue(mMetadata.getColumns().get(column).field);
+    }
+
+    /**
+     * Put value into values using BagginsDomainModel.setContentValue.
+     */
+    protected void putContentValue(T model, ContentValues values, String key, Object value) {
+        model.setContentValue(values, key, value);
+    }
+
+    /**
+     * Put value into postParams using BagginsDomainModel.setPostDataParam.
+     */
+    protected void putPostParam(T model, Map<String, String> postParams, String key, Object value) {
+        model.setPostDataParam(postParams, key, value);
+    }
+}
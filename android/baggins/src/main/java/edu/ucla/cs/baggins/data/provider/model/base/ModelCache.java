@@ -0,0 +1,209 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An identity map for BagginsDomainModel.find(id): an LRU of the models of one table, keyed by
+ * id, so repeated lookups of the same row return the same instance without a provider query.
+ * There is one cache per table, enabled with @ClientTable(value = "table", cacheSize = 100).
+ * <p/>
+ * A cache stays consistent with the provider by:
+ * <p/>
+ * - Observing the table uri. A change to a row uri evicts that row, a change to the table uri
+ * clears the cache. Changes whose notification is deferred (QueryParameters.DEFER_NOTIFY) or
+ * debounced are seen when they are notified.
+ * <p/>
+ * - save, update and delete through a BagginsDomainModel invalidate it directly, so the writing
+ * thread never reads its own stale row.
+ * <p/>
+ * The cached instances are shared. Treat them as read only and write changes with update.
+ */
+public final class ModelCache<T extends BagginsDomainModel> {
+
+    private final static String TAG = "model_cache";
+
+    /**
+     * The process wide caches, keyed by table name.
+     */
+    private final static ConcurrentHashMap<String, ModelCache<?>> sCaches = new ConcurrentHashMap<>();
+
+    private final String                 mTableName;
+    private final int                    mMaxSize;
+    private final LinkedHashMap<Long, T> mModels;
+
+    private long mHits          = 0;
+    private long mMisses        = 0;
+    private long mEvictions     = 0;
+    private long mInvalidations = 0;
+    private long mGeneration    = 0;     // Incremented by every invalidation
+
+    private ModelCache(String tableName, int maxSize) {
+        mTableName = tableName;
+        mMaxSize = maxSize;
+        mModels = new LinkedHashMap<Long, T>(16, 0.75f, true) {    // Access order for LRU
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+                if (size() > mMaxSize) {
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache of a table, creating it and observing tableUri the first time.
+     *
+     * @param tableName The content provider table name.
+     * @param maxSize   The number of models to keep.
+     * @param resolver  Used to observe changes to tableUri.
+     * @param tableUri  The content uri of the table.
+     * @return The cache for tableName.
+     */
+    public static <T extends BagginsDomainModel> ModelCache<T> forTable(String tableName, int maxSize,
+                                                                        ContentResolver resolver,
+                                                                        Uri tableUri) {
+        ModelCache<?> cache = sCaches.get(tableName);
+        if (cache == null) {
+            ModelCache<T> created = new ModelCache<>(tableName, maxSize);
+            cache = sCaches.putIfAbsent(tableName, created);
+            if (cache == null) {
+                cache = created;
+                resolver.registerContentObserver(tableUri, true, created.new Observer());
+            }
+        }
+        return (ModelCache<T>) cache;
+    }
+
+    /**
+     * @return The cached model, or null on a miss.
+     */
+    @Nullable
+    public synchronized T get(long id) {
+        T model = mModels.get(id);
+        if (model != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return model;
+    }
+
+    /**
+     * @return The number of invalidations so far. Read it before querying a row to put.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache model, unless the cache was invalidated since generation: a write which landed
+     * while the model was being queried may have made it stale.
+     *
+     * @param generation getGeneration() from before model was queried.
+     * @return Whether model was cached.
+     */
+    public synchronized boolean put(long id, T model, long generation) {
+        if (generation != mGeneration) {
+            return false;
+        }
+        mModels.put(id, model);
+        return true;
+    }
+
+    /**
+     * Evict the model with id, if cached.
+     */
+    public synchronized void invalidate(long id) {
+        mGeneration++;                  // Even if not cached, it may be being loaded
+        if (mModels.remove(id) != null) {
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Evict every model, e.g. after an update whose rows are not known.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidations += mModels.size();
+        mModels.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    // Counters
+    // ------------------------------------------------------------------------
+
+    public synchronized int size() {
+        return mModels.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return The number of models dropped because the cache was full.
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return The number of models dropped because their row changed.
+     */
+    public synchronized long getInvalidationCount() {
+        return mInvalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ModelCache{" + mTableName + " size=" + mModels.size() + "/" + mMaxSize +
+               " hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions +
+               " invalidations=" + mInvalidations + "}";
+    }
+
+    /**
+     * Invalidates the cache when the provider notifies a change to the table.
+     */
+    private class Observer extends ContentObserver {
+        Observer() {
+            super(null);    // Called on a binder thread, the cache is synchronized
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, @Nullable Uri uri) {
+            if (uri != null) {
+                List<String> segments = uri.getPathSegments();
+                if (segments.size() == 2) {
+                    try {
+                        invalidate(Long.parseLong(segments.get(1)));
+                        return;
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Not a row uri: " + uri);
+                    }
+                }
+            }
+            invalidateAll();
+        }
+    }
+}
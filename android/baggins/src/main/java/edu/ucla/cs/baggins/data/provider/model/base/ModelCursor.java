@@ -0,0 +1,182 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy view of a query on a BagginsDomainModel table. Rows are hydrated into models one at a
+ * time as the caller iterates, so memory stays constant no matter how many rows match. Get one
+ * from BagginsDomainModel.queryCursor.
+ * <p/>
+ * In flyweight mode, every call to next() (or get(position)) returns the same model instance,
+ * reloaded with the current row. Copy out what you need before moving on, and do not keep
+ * references to the returned models.
+ * <p/>
+ * The cursor is closed, and the ContentProviderClient released, when iteration reaches the end.
+ * If you stop iterating early, or only use get(position), call close().
+ * <pre>
+ *     for (User user : User.with(context).queryCursor(null, null, null, true)) {
+ *         ...
+ *     }
+ * </pre>
+ *
+ * @param <T> The model class.
+ */
+public class ModelCursor<T extends BagginsDomainModel> implements Iterable<T>, Closeable {
+
+    private final BagginsDomainModel<T> mDao;
+    private final Cursor                mCursor;
+    private final int[]                 mColumnIndices;   // Resolved once, not per row
+    private final boolean               mFlyweight;
+
+    /**
+     * The instance reused in flyweight mode.
+     */
+    private T mFlyweightModel;
+
+    private boolean mClosed   = false;
+    private boolean mIterated = false;
+
+    /**
+     * Use BagginsDomainModel.queryCursor instead.
+     *
+     * @param dao       The model which ran the query. Its client is released on close.
+     * @param cursor    The cursor, which this ModelCursor now owns.
+     * @param flyweight True to reuse a single model instance for every row.
+     */
+    ModelCursor(BagginsDomainModel<T> dao, Cursor cursor, boolean flyweight) {
+        mDao = dao;
+        mCursor = cursor;
+        mColumnIndices = dao.getMetadata().getColumnIndices(cursor);
+        mFlyweight = flyweight;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int getCount() {
+        return mCursor.getCount();
+    }
+
+    /**
+     * @return True if this is in flyweight mode.
+     */
+    public boolean isFlyweight() {
+        return mFlyweight;
+    }
+
+    /**
+     * @return The underlying cursor, for reading columns which are not part of the model.
+     */
+    Cursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Hydrate the model at position, for random access from adapters.
+     *
+     * @param position The row, from 0 to getCount() - 1.
+     * @return The model. In flyweight mode this is the shared instance.
+     * @throws IndexOutOfBoundsException If there is no such row.
+     */
+    public T get(int position) {
+        assertOpen();
+        if (!mCursor.moveToPosition(position)) {
+            throw new IndexOutOfBoundsException("No row " + position + ", the cursor has " + getCount() + " rows.");
+        }
+        return hydrate();
+    }
+
+    /**
+     * Iterate the rows from the first. A ModelCursor can only be iterated once, since the cursor
+     * is closed when iteration finishes.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        assertOpen();
+        if (mIterated) {
+            throw new IllegalStateException("A ModelCursor can only be iterated once.");
+        }
+        mIterated = true;
+        mCursor.moveToPosition(-1);
+
+        return new Iterator<T>() {
+            private boolean mHasNext = false;   // True if the cursor was moved to a row not yet returned
+
+            @Override
+            public boolean hasNext() {
+                if (mHasNext) {
+                    return true;
+                }
+                if (mClosed) {
+                    return false;
+                }
+                mHasNext = mCursor.moveToNext();
+                if (!mHasNext) {
+                    close();                    // Done, free the cursor
+                }
+                return mHasNext;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                mHasNext = false;
+                return hydrate();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Use BagginsDomainModel.delete to delete rows.");
+            }
+        };
+    }
+
+    /**
+     * Close the cursor and release the ContentProviderClient. Calling this more than once has no
+     * effect.
+     */
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mCursor.close();
+            mDao.releaseClient();
+        }
+    }
+
+    /**
+     * @return True if the cursor has been closed.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Load the current row into a new model, or into the shared model in flyweight mode.
+     */
+    private T hydrate() {
+        T model;
+        if (mFlyweight) {
+            if (mFlyweightModel == null) {
+                mFlyweightModel = mDao.createModel();
+            }
+            model = mFlyweightModel;
+        } else {
+            model = mDao.createModel();
+        }
+        model.load(mCursor, mColumnIndices);
+        return model;
+    }
+
+    private void assertOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("The ModelCursor is closed.");
+        }
+    }
+}
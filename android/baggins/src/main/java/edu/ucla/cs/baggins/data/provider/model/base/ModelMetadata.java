@@ -0,0 +1,476 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.ucla.cs.baggins.data.provider.ProviderDatabaseHelper.SQLiteType;
+import edu.ucla.cs.baggins.data.provider.model.annotations.AnnotationMissingException;
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientColumn;
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientIndex;
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientIndexes;
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
+
+/**
+ * Reflection metadata for a BagginsDomainModel class. The annotations of a model class never
+ * change at runtime, so everything BagginsDomainModel needs to move data between the model, the
+ * ContentProvider and the server (table name, column names, Field handles, SQLite types and
+ * @SerializedName names) is resolved once per class and shared by every instance.
+ * <p/>
+ * Call ModelMetadata.of(modelClass) to get the metadata for a class.
+ */
+public final class ModelMetadata {
+
+    public final static String TAG = "model_metadata";
+
+    /**
+     * The process wide registry of metadata, keyed by model class.
+     */
+    private final static ConcurrentHashMap<Class<?>, ModelMetadata> sRegistry = new ConcurrentHashMap<>();
+
+    /**
+     * Describes a single field annotated with @ClientColumn.
+     */
+    public final static class ColumnMetadata {
+
+        /**
+         * The field, already set accessible.
+         */
+        public final Field field;
+
+        /**
+         * The name of the column from @ClientColumn.
+         */
+        public final String name;
+
+        /**
+         * The name from @SerializedName or null if the field is not annotated with it.
+         */
+        public final String serializedName;
+
+        /**
+         * The type from @ClientColumn.
+         */
+        public final ClientColumn.Type type;
+
+        /**
+         * The SQLite type the field is stored as.
+         */
+        public final SQLiteType sqliteType;
+
+        /**
+         * True if this is the _id column.
+         */
+        public final boolean isPrimaryKey;
+
+        ColumnMetadata(Field field, ClientColumn clientColumn) {
+            SerializedName serialized = field.getAnnotation(SerializedName.class);
+
+            this.field = field;
+            this.name = clientColumn.value();
+            this.serializedName = (serialized == null) ? null : serialized.value();
+            this.type = ClientColumn.Type.toType(clientColumn.type());
+            this.sqliteType = SQLiteType.toSQLiteType(field);
+            this.isPrimaryKey = name.equals(BagginsDomainModel._ID);
+        }
+    }
+
+    /**
+     * Describes a SQLite index declared with @ClientIndex, or the default index on _status.
+     */
+    public final static class IndexMetadata {
+
+        /**
+         * The prefix of the name of every index Baggins manages. Indexes with this prefix which
+         * are no longer declared are dropped.
+         */
+        public final static String PREFIX = "baggins_idx_";
+
+        /**
+         * The name of the index: PREFIX + table + columns (+ "_unique").
+         */
+        public final String name;
+
+        /**
+         * The indexed column names, in order.
+         */
+        public final List<String> columns;
+
+        /**
+         * True if this is a UNIQUE index.
+         */
+        public final boolean unique;
+
+        IndexMetadata(String tableName, String[] columns, boolean unique) {
+            StringBuilder sb = new StringBuilder(PREFIX).append(tableName);
+            for (String column : columns) {
+                sb.append('_').append(column);
+            }
+            if (unique) {
+                sb.append("_unique");
+            }
+
+            this.name = sb.toString();
+            this.columns = Collections.unmodifiableList(Arrays.asList(columns.clone()));
+            this.unique = unique;
+        }
+    }
+
+    private final Class<?>             mModelClass;
+    private final String               mTableName;
+    private final int                  mCacheSize;
+    private final List<ColumnMetadata> mColumns;
+    private final List<IndexMetadata>  mIndexes;
+    private final List<Field>          mClientFields;
+    private final List<Field>          mSerializableFields;
+    private final String[]             mClientNames;
+    private final ModelAdapter<?>      mAdapter;
+
+    /**
+     * The no-arg constructor, looked up lazily since abstract classes do not have one.
+     */
+    private volatile Constructor<?> mConstructor;
+
+    /**
+     * Use ModelMetadata.of(modelClass) instead.
+     */
+    private ModelMetadata(Class<?> modelClass) {
+        ClientTable clientTable = modelClass.getAnnotation(ClientTable.class);
+        if (clientTable == null) {
+            throw new AnnotationMissingException("All domain objects extending BagginsDomainModel" +
+                                                 " must contain the class annotation @ClientTable(\"table name\")");
+        }
+
+        List<ColumnMetadata> columns            = new ArrayList<>();
+        List<Field>          clientFields       = new ArrayList<>();
+        List<Field>          serializableFields = new ArrayList<>();
+        List<ClientIndex>    classIndexes       = new ArrayList<>();
+        List<IndexMetadata>  fieldIndexes       = new ArrayList<>();
+
+        // Start at BagginsDomainModel and work down to modelClass so that _id and _status are
+        // always the first columns and the order is consistent for every instance.
+        for (Class<?> c : getHierarchy(modelClass)) {
+            ClientIndex   clientIndex   = c.getAnnotation(ClientIndex.class);
+            ClientIndexes clientIndexes = c.getAnnotation(ClientIndexes.class);
+            if (clientIndex != null) {
+                classIndexes.add(clientIndex);
+            }
+            if (clientIndexes != null) {
+                classIndexes.addAll(Arrays.asList(clientIndexes.value()));
+            }
+
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) {
+                    continue;
+                }
+
+                ClientColumn clientColumn = f.getAnnotation(ClientColumn.class);
+                boolean      isSerialized = f.isAnnotationPresent(SerializedName.class);
+                if (clientColumn == null && !isSerialized) {
+                    continue;
+                }
+
+                f.setAccessible(true);          // Set accessible once, most model fields are private
+                if (clientColumn != null) {
+                    ColumnMetadata column = new ColumnMetadata(f, clientColumn);
+                    columns.add(column);
+                    clientFields.add(f);
+
+                    ClientIndex fieldIndex = f.getAnnotation(ClientIndex.class);
+                    if (fieldIndex != null) {
+                        fieldIndexes.add(new IndexMetadata(clientTable.value(), new String[]{column.name},
+                                                           fieldIndex.unique()));
+                    }
+                } else if (f.isAnnotationPresent(ClientIndex.class)) {
+                    throw new AnnotationMissingException("Field " + f.getName() + " of " + modelClass.getName() +
+                                                         " requires @ClientColumn to be annotated with @ClientIndex.");
+                }
+                if (isSerialized) {
+                    serializableFields.add(f);
+                }
+            }
+        }
+
+        // If the annotation processor generated an adapter, adopt its column order so the
+        // positions it addresses match getColumns().
+        ModelAdapter<?> adapter = findAdapter(modelClass);
+        if (adapter != null) {
+            List<ColumnMetadata> ordered = orderColumns(columns, adapter.getColumnNames());
+            if (ordered == null) {
+                Log.w(TAG, "Ignoring stale " + modelClass.getName() + ModelAdapter.SUFFIX +
+                           ", its columns do not match the model. Rebuild to regenerate it.");
+                adapter = null;
+            } else {
+                columns = ordered;
+                clientFields = new ArrayList<>(columns.size());
+                for (ColumnMetadata column : columns) {
+                    clientFields.add(column.field);
+                }
+            }
+        }
+
+        mModelClass = modelClass;
+        mTableName = clientTable.value();
+        mCacheSize = clientTable.cacheSize();
+        mIndexes = Collections.unmodifiableList(buildIndexes(mTableName, columns, fieldIndexes, classIndexes));
+        mAdapter = adapter;
+        mColumns = Collections.unmodifiableList(columns);
+        mClientFields = Collections.unmodifiableList(clientFields);
+        mSerializableFields = Collections.unmodifiableList(serializableFields);
+
+        mClientNames = new String[columns.size()];
+        for (int i = 0; i < mClientNames.length; i++) {
+            mClientNames[i] = columns.get(i).name;
+        }
+
+        if (mAdapter != null) {
+            mAdapter.attach(this);
+        }
+    }
+
+    /**
+     * Get the metadata for modelClass, building it the first time the class is seen.
+     *
+     * @param modelClass A class annotated with @ClientTable.
+     * @return The metadata for modelClass.
+     * @throws AnnotationMissingException If the class is not annotated with @ClientTable.
+     */
+    public static ModelMetadata of(@NonNull Class<?> modelClass) throws AnnotationMissingException {
+        ModelMetadata metadata = sRegistry.get(modelClass);
+        if (metadata == null) {
+            // Two threads may both build the metadata, that is harmless since they are identical.
+            ModelMetadata created = new ModelMetadata(modelClass);
+            metadata = sRegistry.putIfAbsent(modelClass, created);
+            if (metadata == null) {
+                metadata = created;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * @return The classes from BagginsDomainModel down to modelClass, in that order.
+     */
+    private static List<Class<?>> getHierarchy(Class<?> modelClass) {
+        LinkedList<Class<?>> hierarchy = new LinkedList<>();
+        for (Class<?> c = modelClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.addFirst(c);
+            if (c == BagginsDomainModel.class) {
+                break;
+            }
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Build the indexes of a table: the default index on _status, then the field indexes, then
+     * the class (composite) indexes. Duplicates are dropped.
+     *
+     * @throws RuntimeException If a class index names a column which does not exist.
+     */
+    private static List<IndexMetadata> buildIndexes(String tableName,
+                                                    List<ColumnMetadata> columns,
+                                                    List<IndexMetadata> fieldIndexes,
+                                                    List<ClientIndex> classIndexes) {
+
+        Map<String, IndexMetadata> indexes = new LinkedHashMap<>();     // Keyed by name to drop duplicates
+        Set<String>                names   = new HashSet<>();
+        for (ColumnMetadata column : columns) {
+            names.add(column.name);
+        }
+
+        if (names.contains(BagginsDomainModel.STATUS)) {
+            IndexMetadata status = new IndexMetadata(tableName, new String[]{BagginsDomainModel.STATUS}, false);
+            indexes.put(status.name, status);
+        }
+
+        for (IndexMetadata index : fieldIndexes) {
+            indexes.put(index.name, index);
+        }
+
+        for (ClientIndex clientIndex : classIndexes) {
+            if (clientIndex.value().length == 0) {
+                throw new RuntimeException("@ClientIndex on " + tableName + " must list the columns to index.");
+            }
+            for (String name : clientIndex.value()) {
+                if (!names.contains(name)) {
+                    throw new RuntimeException("@ClientIndex on " + tableName + " names the column " + name +
+                                               " which does not exist.");
+                }
+            }
+            IndexMetadata index = new IndexMetadata(tableName, clientIndex.value(), clientIndex.unique());
+            indexes.put(index.name, index);
+        }
+
+        return new ArrayList<>(indexes.values());
+    }
+
+    /**
+     * Look for the adapter generated by the baggins-compiler annotation processor.
+     *
+     * @param modelClass The model class.
+     * @return An instance of [modelClass]$$BagginsAdapter or null if none was generated.
+     */
+    private static ModelAdapter<?> findAdapter(Class<?> modelClass) {
+        try {
+            Class<?> adapterClass = Class.forName(modelClass.getName() + ModelAdapter.SUFFIX,
+                                                  true, modelClass.getClassLoader());
+            return (ModelAdapter<?>) adapterClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;                    // No generated adapter, use reflection
+        } catch (Throwable t) {
+            Log.w(TAG, "Error instantiating adapter for " + modelClass.getName() + ": " + t);
+            return null;
+        }
+    }
+
+    /**
+     * Order columns by columnNames.
+     *
+     * @return The reordered columns, or null if columns and columnNames are not the same set.
+     */
+    private static List<ColumnMetadata> orderColumns(List<ColumnMetadata> columns, String[] columnNames) {
+        if (columns.size() != columnNames.length) {
+            return null;
+        }
+
+        Map<String, ColumnMetadata> byName = new HashMap<>();
+        for (ColumnMetadata column : columns) {
+            byName.put(column.name, column);
+        }
+
+        List<ColumnMetadata> ordered = new ArrayList<>(columns.size());
+        for (String name : columnNames) {
+            ColumnMetadata column = byName.remove(name);
+            if (column == null) {
+                return null;
+            }
+            ordered.add(column);
+        }
+        return ordered;
+    }
+
+    /**
+     * @return The adapter generated for this model class, or null if there is none and the
+     * fields have to be accessed reflectively.
+     */
+    @Nullable
+    public ModelAdapter<?> getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * @return The model class this metadata describes.
+     */
+    public Class<?> getModelClass() {
+        return mModelClass;
+    }
+
+    /**
+     * @return The name of the content provider table from @ClientTable.
+     */
+    public String getTableName() {
+        return mTableName;
+    }
+
+    /**
+     * @return The ModelCache size from @ClientTable, 0 if the table is not cached.
+     */
+    public int getCacheSize() {
+        return mCacheSize;
+    }
+
+    /**
+     * @return The @ClientColumn fields, in column order.
+     */
+    public List<ColumnMetadata> getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return The indexes of the table, including the default index on _status.
+     */
+    public List<IndexMetadata> getIndexes() {
+        return mIndexes;
+    }
+
+    /**
+     * @return The fields annotated with @ClientColumn, in column order.
+     */
+    public List<Field> getClientFields() {
+        return mClientFields;
+    }
+
+    /**
+     * @return The fields annotated with @SerializedName.
+     */
+    public List<Field> getSerializableFields() {
+        return mSerializableFields;
+    }
+
+    /**
+     * @return A copy of the column names, in column order. Use this as the projection when
+     * querying the ContentProvider.
+     */
+    public String[] getClientNames() {
+        return mClientNames.clone();
+    }
+
+    /**
+     * Create a new instance of the model class using its public no-arg constructor.
+     *
+     * @return The new instance.
+     * @throws RuntimeException If the model class can not be instantiated.
+     */
+    public Object newInstance() {
+        try {
+            Constructor<?> ctor = mConstructor;
+            if (ctor == null) {
+                ctor = mModelClass.getConstructor();
+                mConstructor = ctor;
+            }
+            return ctor.newInstance();
+        } catch (Throwable t) {
+            throw new RuntimeException("Error instantiating " + mModelClass.getName() + ": " + t, t);
+        }
+    }
+
+    /**
+     * Resolve the index in cursor of each column, in column order. Call this once per cursor
+     * rather than once per row.
+     *
+     * @param cursor The cursor to read column indices from.
+     * @return The cursor column index of each column.
+     * @throws RuntimeException If the cursor is missing a column.
+     */
+    public int[] getColumnIndices(@NonNull Cursor cursor) {
+        int[] indices = new int[mColumns.size()];
+        for (int i = 0; i < indices.length; i++) {
+            ColumnMetadata column = mColumns.get(i);
+            indices[i] = cursor.getColumnIndex(column.name);
+            if (indices[i] == -1) {
+                throw new RuntimeException("The column " + column.name + " for field " +
+                                           column.field.getName() + " does not exist.");
+            }
+        }
+        return indices;
+    }
+}
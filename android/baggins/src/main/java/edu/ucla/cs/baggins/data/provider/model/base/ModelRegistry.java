@@ -0,0 +1,19 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+/**
+ * Implemented by the BagginsModelRegistry class which the baggins-compiler annotation processor
+ * generates. It lists every class annotated with @ClientTable at build time so the classes do not
+ * have to be found by scanning the dex file at runtime.
+ */
+public interface ModelRegistry {
+
+    /**
+     * The fully qualified name of the generated registry.
+     */
+    String CLASS_NAME = "edu.ucla.cs.baggins.generated.BagginsModelRegistry";
+
+    /**
+     * @return Every concrete class annotated with @ClientTable.
+     */
+    Class<?>[] getModelClasses();
+}
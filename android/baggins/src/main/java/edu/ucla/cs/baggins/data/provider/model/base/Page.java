@@ -0,0 +1,78 @@
+package edu.ucla.cs.baggins.data.provider.model.base;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One page of a keyset paginated query, see BagginsDomainModel.page. Pass getNextKey() to the
+ * next call to page to get the rows after this page.
+ *
+ * @param <T> The model class.
+ */
+public class Page<T extends BagginsDomainModel> implements Iterable<T> {
+
+    /**
+     * The position of the last row of a page: the value of the sort column and the _id (which
+     * breaks ties between rows with the same sort value).
+     */
+    public final static class Key {
+
+        /**
+         * The value of the sort column as a string, or null when paging by _id.
+         */
+        public final String sortValue;
+
+        /**
+         * The _id of the row.
+         */
+        public final long id;
+
+        public Key(@Nullable String sortValue, long id) {
+            this.sortValue = sortValue;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "Key {sortValue=\"" + sortValue + "\" id=" + id + "}";
+        }
+    }
+
+    private final List<T> mItems;
+    private final Key     mNextKey;
+
+    Page(List<T> items, @Nullable Key nextKey) {
+        mItems = Collections.unmodifiableList(items);
+        mNextKey = nextKey;
+    }
+
+    /**
+     * @return The models on this page.
+     */
+    public List<T> getItems() {
+        return mItems;
+    }
+
+    /**
+     * @return The key to pass to page to get the next page, or null if this is the last page.
+     */
+    @Nullable
+    public Key getNextKey() {
+        return mNextKey;
+    }
+
+    /**
+     * @return True if there are rows after this page.
+     */
+    public boolean hasMore() {
+        return mNextKey != null;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return mItems.iterator();
+    }
+}
@@ -0,0 +1,183 @@
+package edu.ucla.cs.baggins.data.provider.model.gson;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientColumn;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata.ColumnMetadata;
+
+/**
+ * Reads one model record at a time from a JsonReader straight into ContentValues, without
+ * building a model or a JSON tree. Use this to ingest large server feeds with flat memory.
+ * <p/>
+ * A JSON member is mapped to the @ClientColumn of the field with the same @SerializedName (or
+ * field name), the mapping Gson uses for Server -> Model. Values are converted the way
+ * GsonFactory and BagginsDomainModel.setContentValue would: booleans (including any non zero
+ * number, as in BooleanSerializer) are stored as 1 or 0, dates
+ * arrive as UTC millis, and a LIST_OF_KEYS column is stored as the comma separated ids of its
+ * array. Members with no column are skipped.
+ */
+public class ModelJsonReader {
+    public final static String TAG = "model_json_reader";
+
+    private final ModelMetadata               mMetadata;
+    private final Map<String, ColumnMetadata> mColumns = new HashMap<>();
+
+    public ModelJsonReader(ModelMetadata metadata) {
+        mMetadata = metadata;
+        for (ColumnMetadata column : metadata.getColumns()) {
+            String name = column.serializedName == null ? column.field.getName() : column.serializedName;
+            mColumns.put(name, column);
+        }
+    }
+
+    public ModelMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Read the next object of reader.
+     *
+     * @param reader Positioned at the start of a record object.
+     * @return The values of the record, keyed by column name.
+     */
+    public ContentValues read(JsonReader reader) throws IOException {
+        ContentValues values = new ContentValues(mColumns.size());
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            ColumnMetadata column = mColumns.get(reader.nextName());
+            if (column == null) {
+                reader.skipValue();
+            } else {
+                readValue(reader, column, values);
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+
+    private void readValue(JsonReader reader, ColumnMetadata column, ContentValues values) throws IOException {
+        JsonToken token = reader.peek();
+        if (isBoolean(column) && token != JsonToken.NULL) {
+            values.put(column.name, readBoolean(reader) ? 1 : 0);
+            return;
+        }
+
+        switch (token) {
+            case NULL:
+                reader.nextNull();
+                values.putNull(column.name);
+                break;
+
+            case BOOLEAN:
+                values.put(column.name, reader.nextBoolean() ? 1 : 0);
+                break;
+
+            case NUMBER:
+                switch (column.sqliteType) {
+                    case INTEGER:
+                        values.put(column.name, readLong(reader));
+                        break;
+                    case REAL:
+                        values.put(column.name, reader.nextDouble());
+                        break;
+                    default:
+                        values.put(column.name, reader.nextString());
+                }
+                break;
+
+            case STRING:
+                values.put(column.name, reader.nextString());
+                break;
+
+            case BEGIN_ARRAY:
+                if (column.type == ClientColumn.Type.LIST_OF_KEYS) {
+                    values.put(column.name, readKeys(reader));
+                } else {
+                    Log.w(TAG, "Skipping array for column " + column.name);
+                    reader.skipValue();
+                }
+                break;
+
+            default:
+                Log.w(TAG, "Skipping " + token + " for column " + column.name);
+                reader.skipValue();
+        }
+    }
+
+    private static boolean isBoolean(ColumnMetadata column) {
+        Class<?> type = column.field.getType();
+        return type == boolean.class || type == Boolean.class;
+    }
+
+    /**
+     * Read a boolean the way BooleanSerializer does, where any non zero number is true. The
+     * strings "true" and "false" are read too.
+     */
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        String value = reader.nextString();         // Throws for an array or object
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.parseBoolean(value);
+        }
+        return Double.parseDouble(value) != 0;
+    }
+
+    /**
+     * Read a number which may be written as a double, e.g. 1.0E12.
+     */
+    private static long readLong(JsonReader reader) throws IOException {
+        String number = reader.nextString();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(number);
+        }
+    }
+
+    /**
+     * Read an array of ids, or of objects with an id, as comma separated ids.
+     */
+    private static String readKeys(JsonReader reader) throws IOException {
+        StringBuilder keys = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String key = null;
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("id".equals(name) || BagginsDomainModel._ID.equals(name)) {
+                        key = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                key = reader.nextString();
+            }
+
+            if (key != null) {
+                if (keys.length() > 0) {
+                    keys.append(",");
+                }
+                keys.append(key);
+            }
+        }
+        reader.endArray();
+        return keys.toString();
+    }
+}
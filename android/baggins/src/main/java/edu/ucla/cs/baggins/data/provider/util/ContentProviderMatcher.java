@@ -6,14 +6,17 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class uses UriMatcher and maps a ContentProvider URI to a few values:
  * - A unique integer code generated by this class.
  *   This uri/code combination is stored in UriMatcher
- * -
+ * - A Route, stored in an array indexed by the code, with the table name, primary key, mime
+ *   type and whether the uri is for an item.
+ * <p/>
+ * Call resolve(uri) once per provider operation to get everything about the uri from a single
+ * match and an array lookup. resolve takes no lock, so binder threads do not wait on each other.
  * Created by Ethan L. Schreiber on 4/6/16.
  */
 public class ContentProviderMatcher {
@@ -27,17 +30,52 @@ public class ContentProviderMatcher {
 
     private final String AUTHORITY;
 
-    private Map<Integer, UriData> mPathDataMap;
-
-    private class UriData {
-        public String tableName;
-        public String primaryKey;
-        public String type;
+    /**
+     * The route of each match code, for dir uris. Item uris are resolved to a copy with the id.
+     * Written under the lock by addURI, read without it by resolve.
+     */
+    private volatile Route[] mRoutes = new Route[8];
 
-        public UriData(String tableName, String primaryKey, String type) {
+    /**
+     * Everything the provider needs to know about a uri.
+     */
+    public final static class Route {
+        /**
+         * The name of the table.
+         */
+        public final String tableName;
+
+        /**
+         * The name of the primary key column.
+         */
+        public final String primaryKey;
+
+        /**
+         * The mime type.
+         */
+        public final String type;
+
+        /**
+         * True if the uri refers to a single row (/table/#), false for the table (/table).
+         */
+        public final boolean isItem;
+
+        /**
+         * The id parsed from an item uri, or -1 for a dir uri.
+         */
+        public final long id;
+
+        Route(String tableName, String primaryKey, String type, boolean isItem, long id) {
             this.tableName = tableName;
             this.primaryKey = primaryKey;
             this.type = type;
+            this.isItem = isItem;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "Route {table=\"" + tableName + "\" item=" + isItem + " id=" + id + "}";
         }
     }
 
@@ -45,8 +83,6 @@ public class ContentProviderMatcher {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatchCode = 0;
         AUTHORITY = authority;
-        mPathDataMap = new HashMap<>();
-
     }
 
     private int nextMatchCode() {
@@ -88,26 +124,51 @@ public class ContentProviderMatcher {
      * @param contentName
      * @param tableName
      */
-    public void addURI(@NonNull String uri, String contentName, String tableName, String primaryKey) {
+    public synchronized void addURI(@NonNull String uri, String contentName, String tableName, String primaryKey) {
 
         if (uri.endsWith("#") || uri.endsWith(File.pathSeparator)) {
             throw new RuntimeException("Invalid uri: " + uri);
         }
 
-        // Add the dir type uri
+        // Add the dir type uri. The route is published before the uri can match.
         int code = nextMatchCode();
+        putRoute(code, new Route(tableName, primaryKey, getContentDirType(contentName), false, -1));
         mMatcher.addURI(AUTHORITY, uri, code);
-        mPathDataMap.put(code, new UriData(tableName, primaryKey, getContentDirType(contentName)));
 
         // Add the item type uri
         code = nextMatchCode();
+        putRoute(code, new Route(tableName, primaryKey, getContentItemType(contentName), true, -1));
         mMatcher.addURI(AUTHORITY, uri + "/#", code);
-        mPathDataMap.put(code, new UriData(tableName, primaryKey, getContentItemType(contentName)));
     }
 
-    protected UriData getUriData(@NonNull Uri uri) {
-        int code = mMatcher.match(uri);
-        return mPathDataMap.get(code);
+    private void putRoute(int code, Route route) {
+        Route[] routes = mRoutes;
+        if (code >= routes.length) {
+            routes = Arrays.copyOf(routes, Math.max(code + 1, routes.length * 2));
+        }
+        routes[code] = route;
+        mRoutes = routes;       // The volatile write publishes the route to resolve
+    }
+
+    /**
+     * Resolve uri with a single match.
+     *
+     * @param uri The uri to match.
+     * @return The route of uri, or null if it was not registered with addURI.
+     */
+    public Route resolve(@NonNull Uri uri) {
+        int     code   = mMatcher.match(uri);
+        Route[] routes = mRoutes;
+        if (code < 0 || code >= routes.length || routes[code] == null) {
+            return null;
+        }
+
+        Route route = routes[code];
+        if (route.isItem) {
+            route = new Route(route.tableName, route.primaryKey, route.type, true,
+                              Long.parseLong(uri.getLastPathSegment()));
+        }
+        return route;
     }
 
     /**
@@ -117,12 +178,8 @@ public class ContentProviderMatcher {
      * @return The type.
      */
     public String matchType(@NonNull Uri uri) {
-        UriData data = getUriData(uri);
-        if (data == null) {
-            return null;
-        } else {
-            return data.type;
-        }
+        Route route = resolve(uri);
+        return (route == null) ? null : route.type;
     }
 
 
@@ -131,9 +188,8 @@ public class ContentProviderMatcher {
      * @return true if this is an item type, i.e. ends with a #, false otherwise.
      */
     public boolean isItemType(@NonNull Uri uri) {
-        String type = matchType(uri);
-        return (type == null) ? false :
-               type.startsWith(ContentResolver.CURSOR_ITEM_BASE_TYPE);
+        Route route = resolve(uri);
+        return route != null && route.isItem;
     }
 
 
@@ -144,12 +200,8 @@ public class ContentProviderMatcher {
      * @return The table name.
      */
     public String matchTable(@NonNull Uri uri) {
-        UriData data = getUriData(uri);
-        if (data == null) {
-            return null;
-        } else {
-            return data.tableName;
-        }
+        Route route = resolve(uri);
+        return (route == null) ? null : route.tableName;
     }
 
     /**
@@ -159,11 +211,7 @@ public class ContentProviderMatcher {
      * @return The table name.
      */
     public String matchPrimaryKey(@NonNull Uri uri) {
-        UriData data = getUriData(uri);
-        if (data == null) {
-            return null;
-        } else {
-            return data.primaryKey;
-        }
+        Route route = resolve(uri);
+        return (route == null) ? null : route.primaryKey;
     }
 }
@@ -0,0 +1,228 @@
+package edu.ucla.cs.baggins.data.provider.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the uris changed by provider transactions and notifies them with fewer
+ * ContentResolver.notifyChange calls:
+ * <p/>
+ * - Row uris (content://authority/table/id) are collapsed into their table uri when more than
+ * the collapse threshold of them are pending for one table, or when the table uri itself is
+ * pending. Notifying a table uri also notifies observers of its rows, so no observer misses a
+ * change.
+ * <p/>
+ * - With a debounce window, the uris of every transaction committed within the window after the
+ * first are notified together at the end of the window, so saving 500 models one at a time
+ * wakes each observer once rather than 500 times.
+ * <p/>
+ * - Deferred uris (e.g. from a sync adapter, see BagginsContract.QueryParameters.DEFER_NOTIFY)
+ * are held until flushDeferred, e.g. once at the end of a sync.
+ * <p/>
+ * The window and threshold are read from the meta-data of the provider:
+ * <pre>
+ * &lt;meta-data android:name="NotifyCollapseThreshold" android:value="10" /&gt;
+ * &lt;meta-data android:name="NotifyDebounceMillis" android:value="100" /&gt;
+ * </pre>
+ */
+public class NotificationCoalescer {
+    public final static String TAG = "notification_coalescer";
+
+    /**
+     * More row uris than this for one table are notified as the table uri.
+     */
+    public final static String META_COLLAPSE_THRESHOLD = "NotifyCollapseThreshold";
+
+    /**
+     * How long to collect changes before notifying them, in milliseconds. 0, the default,
+     * notifies at the end of every transaction.
+     */
+    public final static String META_DEBOUNCE_MILLIS = "NotifyDebounceMillis";
+
+    public final static int DEFAULT_COLLAPSE_THRESHOLD = 10;
+
+    private final ContentResolver mResolver;
+    private final int             mCollapseThreshold;
+    private final long            mDebounceMillis;
+    private final Handler         mHandler;
+
+    /**
+     * The uris to notify, and whether to sync each to the network.
+     */
+    private final Map<Uri, Boolean> mPending  = new LinkedHashMap<>();
+    private final Map<Uri, Boolean> mDeferred = new LinkedHashMap<>();
+    private       boolean           mScheduled;
+
+    private final Runnable mFlushPending = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param resolver          The resolver to notify.
+     * @param collapseThreshold More row uris than this for one table are notified as the table.
+     * @param debounceMillis    How long to collect changes before notifying them, 0 to notify
+     *                          at the end of every transaction.
+     */
+    public NotificationCoalescer(ContentResolver resolver, int collapseThreshold, long debounceMillis) {
+        if (collapseThreshold < 0 || debounceMillis < 0) {
+            throw new IllegalArgumentException("collapseThreshold and debounceMillis can not be negative.");
+        }
+        mResolver = resolver;
+        mCollapseThreshold = collapseThreshold;
+        mDebounceMillis = debounceMillis;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @param resolver The resolver to notify.
+     * @param metaData The meta-data of the provider, may be null.
+     */
+    public static NotificationCoalescer fromMetaData(ContentResolver resolver, @Nullable Bundle metaData) {
+        if (metaData == null) {
+            return new NotificationCoalescer(resolver, DEFAULT_COLLAPSE_THRESHOLD, 0);
+        }
+        return new NotificationCoalescer(resolver,
+                                         metaData.getInt(META_COLLAPSE_THRESHOLD, DEFAULT_COLLAPSE_THRESHOLD),
+                                         metaData.getInt(META_DEBOUNCE_MILLIS, 0));
+    }
+
+    /**
+     * Post the uris changed by a committed transaction.
+     *
+     * @param changed The changed uris, and whether to sync each to the network.
+     * @param defer   True to hold them until flushDeferred.
+     */
+    public void post(Map<Uri, Boolean> changed, boolean defer) {
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        Map<Uri, Boolean> ready = null;
+        synchronized (this) {
+            if (defer) {
+                merge(mDeferred, changed);
+                return;
+            }
+
+            merge(mPending, changed);
+            if (mDebounceMillis == 0) {
+                ready = takePending();
+            } else if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlushPending, mDebounceMillis);
+            }
+        }
+        notify(ready);
+    }
+
+    /**
+     * Notify the pending uris now, without waiting for the debounce window.
+     */
+    public void flush() {
+        Map<Uri, Boolean> ready;
+        synchronized (this) {
+            ready = takePending();
+        }
+        notify(ready);
+    }
+
+    /**
+     * Notify the deferred uris, along with the pending ones.
+     */
+    public void flushDeferred() {
+        Map<Uri, Boolean> ready;
+        synchronized (this) {
+            merge(mPending, mDeferred);
+            mDeferred.clear();
+            ready = takePending();
+        }
+        notify(ready);
+    }
+
+    private Map<Uri, Boolean> takePending() {
+        if (mScheduled) {
+            mScheduled = false;
+            mHandler.removeCallbacks(mFlushPending);
+        }
+        Map<Uri, Boolean> ready = new LinkedHashMap<>(mPending);
+        mPending.clear();
+        return ready;
+    }
+
+    private void notify(@Nullable Map<Uri, Boolean> ready) {
+        if (ready == null) {
+            return;
+        }
+        for (Map.Entry<Uri, Boolean> entry : ready.entrySet()) {
+            mResolver.notifyChange(entry.getKey(), null, entry.getValue());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Collapsing
+    // ------------------------------------------------------------------------
+
+    /**
+     * Add changed to into and collapse the row uris of any table over the threshold.
+     */
+    private void merge(Map<Uri, Boolean> into, Map<Uri, Boolean> changed) {
+        for (Map.Entry<Uri, Boolean> entry : changed.entrySet()) {
+            // Query parameters (e.g. caller_is_syncadapter) do not change who is notified
+            put(into, entry.getKey().buildUpon().clearQuery().build(), entry.getValue());
+        }
+
+        Map<Uri, Integer> rowsPerTable = new HashMap<>();
+        for (Uri uri : into.keySet()) {
+            Uri table = getTableUri(uri);
+            if (!table.equals(uri)) {
+                Integer rows = rowsPerTable.get(table);
+                rowsPerTable.put(table, rows == null ? 1 : rows + 1);
+            }
+        }
+
+        for (Map.Entry<Uri, Integer> entry : rowsPerTable.entrySet()) {
+            Uri table = entry.getKey();
+            if (entry.getValue() > mCollapseThreshold || into.containsKey(table)) {
+                boolean                           syncToNetwork = false;
+                Iterator<Map.Entry<Uri, Boolean>> it            = into.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Uri, Boolean> row = it.next();
+                    if (!row.getKey().equals(table) && getTableUri(row.getKey()).equals(table)) {
+                        syncToNetwork |= row.getValue();
+                        it.remove();
+                    }
+                }
+                put(into, table, syncToNetwork);
+            }
+        }
+    }
+
+    private static void put(Map<Uri, Boolean> uris, Uri uri, boolean syncToNetwork) {
+        Boolean existing = uris.get(uri);
+        uris.put(uri, syncToNetwork || (existing != null && existing));
+    }
+
+    /**
+     * @return The uri of the table of uri, its first path segment.
+     */
+    private static Uri getTableUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() <= 1) {
+            return uri;
+        }
+        return uri.buildUpon().path(segments.get(0)).build();
+    }
+}
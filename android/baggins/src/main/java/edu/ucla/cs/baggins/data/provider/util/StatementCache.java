@@ -0,0 +1,194 @@
+package edu.ucla.cs.baggins.data.provider.util;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An LRU cache of compiled INSERT OR REPLACE statements for the provider's insert path. A
+ * statement is keyed by its table and the set of column names of the ContentValues, so every row
+ * of a bulkInsert or down-sync batch with the same columns reuses one compiled statement, and
+ * only the arguments are rebound per row. The SQL is only built on a miss.
+ * <p/>
+ * Updates and deletes are not cached: their selections are often one-off strings which would
+ * push the insert statements out, and SQLite's own per-connection cache already reuses the
+ * statements of repeated ones.
+ * <p/>
+ * SQLiteStatements are not thread safe. Only use the cache inside a write transaction, which
+ * SQLiteDatabase holds for one thread at a time.
+ */
+public class StatementCache {
+
+    /**
+     * The default number of compiled statements to keep.
+     */
+    public final static int DEFAULT_MAX_SIZE = 32;
+
+    private final int                                 mMaxSize;
+    private final LinkedHashMap<Key, CachedStatement> mStatements;
+
+    /**
+     * The database the cached statements were compiled against.
+     */
+    private SQLiteDatabase mDb;
+
+    private long mHits      = 0;
+    private long mMisses    = 0;
+    private long mEvictions = 0;
+
+    public StatementCache(int maxSize) {
+        mMaxSize = maxSize;
+        mStatements = new LinkedHashMap<Key, CachedStatement>(16, 0.75f, true) {    // Access order for LRU
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedStatement> eldest) {
+                if (size() > mMaxSize) {
+                    eldest.getValue().statement.close();
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    // Statements
+    // ------------------------------------------------------------------------
+
+    /**
+     * INSERT OR REPLACE values into table, the equivalent of db.replaceOrThrow.
+     *
+     * @return The row id of the inserted row.
+     * @throws SQLException If the row could not be inserted.
+     */
+    public synchronized long replace(SQLiteDatabase db, String table, ContentValues values) {
+        if (values == null || values.size() == 0) {
+            return db.replaceOrThrow(table, null, values);      // Needs the null column hack
+        }
+
+        if (db != mDb) {                // The helper reopened the database, the statements are stale
+            clear();
+            mDb = db;
+        }
+
+        CachedStatement cached = mStatements.get(new Key(table, values.keySet()));
+        if (cached == null) {
+            mMisses++;
+            cached = compileReplace(db, table, values.keySet());
+            mStatements.put(new Key(table, new HashSet<>(values.keySet())), cached);
+        } else {
+            mHits++;
+            cached.statement.clearBindings();
+        }
+
+        String[] columns = cached.columns;
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(cached.statement, i + 1, values.get(columns[i]));
+        }
+
+        long rowId = cached.statement.executeInsert();
+        if (rowId == -1) {
+            throw new SQLException("Error inserting into " + table);
+        }
+        return rowId;
+    }
+
+    /**
+     * Close and forget every statement.
+     */
+    public synchronized void clear() {
+        for (CachedStatement cached : mStatements.values()) {
+            cached.statement.close();
+        }
+        mStatements.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    // Counters
+    // ------------------------------------------------------------------------
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private static CachedStatement compileReplace(SQLiteDatabase db, String table, Set<String> columnSet) {
+        String[] columns = columnSet.toArray(new String[columnSet.size()]);
+        Arrays.sort(columns);
+
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+
+        return new CachedStatement(db.compileStatement(sql.toString()), columns);
+    }
+
+    /**
+     * A compiled statement and the order its columns are bound in.
+     */
+    private static class CachedStatement {
+        final SQLiteStatement statement;
+        final String[]        columns;
+
+        CachedStatement(SQLiteStatement statement, String[] columns) {
+            this.statement = statement;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * A table and a set of column names. A lookup wraps the ContentValues' own key set, so a hit
+     * copies nothing.
+     */
+    private static class Key {
+        final String      table;
+        final Set<String> columns;
+
+        Key(String table, Set<String> columns) {
+            this.table = table;
+            this.columns = columns;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return table.equals(other.table) && columns.equals(other.columns);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * table.hashCode() + columns.hashCode();
+        }
+    }
+}
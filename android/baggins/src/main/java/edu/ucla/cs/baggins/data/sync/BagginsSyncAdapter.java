@@ -4,14 +4,19 @@ import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.net.ParseException;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.google.gson.JsonParseException;
+
 import java.io.IOException;
 
+import edu.ucla.cs.baggins.data.provider.BagginsContract;
+
 
 /*
  * Define a sync adapter for the app.
@@ -30,6 +35,12 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
      */
     public static final String ARG_UP_SYNC = "arg_up_sync";
 
+    /**
+     * For passing the maximum number of rows per up sync request into the sync extras bundle.
+     * Defaults to UpSync.DEFAULT_BATCH_SIZE.
+     */
+    public static final String ARG_UP_SYNC_BATCH_SIZE = "arg_up_sync_batch_size";
+
     /**
      * For passing a value into the sync extras bundle to initiate a downsync with the name given.
      */
@@ -40,6 +51,11 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
      */
 //    private final AccountManager mAccountManager;
 
+    /**
+     * Retries the up and down sync calls, see RetryPolicy.
+     */
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+
     /**
      * Constructor. Obtains handle to content resolver for later use.
      */
@@ -87,7 +103,9 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
             // Call the client to server sync
             if (extras.getBoolean(ARG_UP_SYNC, false)) {
                 Log.i(TAG,"UP SYNC!");
-                onPerformSyncClientToServer(authToken, cpClient);
+                onPerformSyncClientToServer(authToken, authority, cpClient,
+                                            extras.getInt(ARG_UP_SYNC_BATCH_SIZE, UpSync.DEFAULT_BATCH_SIZE),
+                                            syncResult);
             }
             // Call the server to client sync. This can only be called a max of once every
             // 60 seconds. If it has been called within the last MIN_PERIOD seconds, this request will
@@ -95,13 +113,22 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
             if (extras.containsKey(ARG_DOWN_SYNC_FEED_NAME)) {
                 String feedName = extras.getString(ARG_DOWN_SYNC_FEED_NAME);
                 Log.i(TAG,"DOWN SYNC with name " + feedName);
-                onPerformSyncServerToClient(authToken, cpClient);
+                onPerformSyncServerToClient(authToken, authority, account, feedName, cpClient, syncResult);
             }
 
         } catch (ParseException e) {
             errorSyncing = true;
             Log.e(TAG, "Error parsing feed: " + e.toString());
             syncResult.stats.numParseExceptions++;
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            // Unexpected JSON, malformed JSON is a SyncFailureException
+            errorSyncing = true;
+            Log.e(TAG, "Error parsing JSON: " + e.toString());
+            syncResult.stats.numParseExceptions++;
+        } catch (SyncFailureException e) {
+            errorSyncing = true;
+            Log.e(TAG, "Sync Failure: " + e);
+            onSyncFailure(e, syncResult);
         } catch (RemoteException e) {
             errorSyncing = true;
             Log.e(TAG, "Remote Exception: " + e);
@@ -110,6 +137,17 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
             errorSyncing = true;
             syncResult.stats.numIoExceptions++;
             Log.e(TAG, "IO Exception: " + e);
+        } catch (OperationApplicationException e) {
+            errorSyncing = true;
+            syncResult.databaseError = true;
+            Log.e(TAG, "Operation Application Exception: " + e);
+        } finally {
+            // The sync's writes defer their notifications, notify them once now
+            try {
+                BagginsContract.flushNotifications(cpClient);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error flushing notifications: " + e);
+            }
         }
 //        catch (AuthenticatorException e) {
 //            errorSyncing = true;
@@ -127,23 +165,58 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Tell the sync manager about a network call RetryPolicy gave up on. A retryable failure is a
+     * soft error, retried by the sync manager no sooner than the policy's wait. Anything else is a
+     * hard error, not retried until the next sync request.
+     */
+    protected void onSyncFailure(SyncFailureException e, SyncResult syncResult) {
+        switch (e.getFailure()) {
+            case AUTH:
+                syncResult.stats.numAuthExceptions++;
+                break;
+
+            case CLIENT:                                    // The server refused the request as is
+            case PARSE:
+                syncResult.stats.numParseExceptions++;
+                break;
+
+            default:
+                syncResult.stats.numIoExceptions++;
+        }
+
+        if (e.getRetryAfterMillis() > 0) {     // delayUntil is in seconds since the epoch
+            long delayUntil = (System.currentTimeMillis() + e.getRetryAfterMillis() + 999) / 1000;
+            syncResult.delayUntil = Math.max(syncResult.delayUntil, delayUntil);
+        }
+    }
+
     // ------------------------------------------------------------------------
     // C L I E N T    T O    S E R V E R
     // ------------------------------------------------------------------------
 
     /**
-     * Perform the sync from client to server.
+     * Perform the sync from client to server: send the rows with _status I, U or D of every
+     * table in batches, see UpSync. A failed call is retried, resuming after the last batch the
+     * server acknowledged. A batch whose response was lost is sent again with the same
+     * Idempotency-Key, which the server must dedupe on.
      *
-     * @param authToken The authentication token for communicating with  the server.
-     * @param cpClient  The ContentProviderClient which is used for reading/writing to ContentProvider tables.
+     * @param authToken  The authentication token for communicating with  the server.
+     * @param authority  The authority of the ContentProvider.
+     * @param cpClient   The ContentProviderClient which is used for reading/writing to ContentProvider tables.
+     * @param batchSize  The maximum number of rows per request.
+     * @param syncResult Where the numbers of rows sent are counted.
      */
-    protected void onPerformSyncClientToServer(String authToken, ContentProviderClient cpClient) throws RemoteException, IOException {
-
-//            // Notify that the Post table has changed
-//            if (!mediaList.isEmpty()) {
-//                Uri CONTENT_URI = contentprovider.Baggins.getContentUri(Baggins.Post.CONTENT_NAME);
-//                getContext().getContentResolver().notifyChange(CONTENT_URI, null, false);
-//            }
+    protected void onPerformSyncClientToServer(String authToken, String authority, ContentProviderClient cpClient,
+                                               int batchSize, final SyncResult syncResult)
+    throws RemoteException, IOException, OperationApplicationException {
+        final UpSync upSync = new UpSync(getContext(), cpClient, authority, RestConstants.upSync(), authToken, batchSize);
+        mRetryPolicy.execute(RestConstants.upSync(), new RetryPolicy.Attempt<Integer>() {
+            @Override
+            public Integer run() throws IOException, RemoteException, OperationApplicationException {
+                return upSync.sync(syncResult);
+            }
+        });
     }
 
     // ------------------------------------------------------------------------
@@ -151,31 +224,26 @@ public class BagginsSyncAdapter extends AbstractThreadedSyncAdapter {
     // ------------------------------------------------------------------------
 
     /**
-     * Perform the sync from server to client. This method can be called a maximum of once every
-     * MAX_SYNC_PERIOD seconds.
+     * Perform the sync from server to client: apply the changes of feedName since its stored
+     * watermark, see DownSync. A failed call is retried from the stored watermark.
      *
-     * @param authToken The authentication token for communicating with  the server.
-     * @param cpClient  The ContentProviderClient which is used for reading/writing to ContentProvider tables.
+     * @param authToken  The authentication token for communicating with  the server.
+     * @param authority  The authority of the ContentProvider.
+     * @param account    The account being synced, the watermark is stored per account.
+     * @param feedName   The name of the down sync as specified on the server.
+     * @param cpClient   The ContentProviderClient which is used for reading/writing to ContentProvider tables.
+     * @param syncResult Where the numbers of rows applied are counted.
      */
-    protected void onPerformSyncServerToClient(String authToken, ContentProviderClient cpClient) throws RemoteException, IOException {
-
-//        long lastTimestamp = api.syncGetTouchedTime();
-
-        // Get the json in string form.
-//        String data = HttpUtils.getJSON(RestConstants.sync(lastTimestamp), authToken);
-
-
-        // For references, see this: http://stackoverflow.com/questions/5554217/google-gson-deserialize-listclass-object-generic-type
-
-        // Use GSON to parse the json
-//        SyncModel syncModel = GsonFactory.get().fromJson(data, SyncModel.class);
-
-        // Set the time difference between the server clock and the client clock.
-//        BagginsSharedPreferences.instance(getContext()).setClientServerTimeDifference(syncModel.timestamp.getTime());
-
-
-
+    protected void onPerformSyncServerToClient(String authToken, String authority, Account account, String feedName,
+                                               ContentProviderClient cpClient, final SyncResult syncResult)
+    throws RemoteException, IOException, OperationApplicationException {
+        final DownSync downSync = new DownSync(getContext(), cpClient, authority, account, feedName, authToken,
+                                               DownSync.DEFAULT_BATCH_SIZE);
+        mRetryPolicy.execute(RestConstants.downSync(feedName, null), new RetryPolicy.Attempt<Integer>() {
+            @Override
+            public Integer run() throws IOException, RemoteException, OperationApplicationException {
+                return downSync.sync(syncResult);
+            }
+        });
     }
-
-
 }
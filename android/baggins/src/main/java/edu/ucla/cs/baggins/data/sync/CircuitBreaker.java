@@ -0,0 +1,159 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops calling a server endpoint which keeps failing, so a degraded backend is not hammered by
+ * every device syncing against it.
+ * <p/>
+ * - CLOSED: calls go through. failureThreshold failures in a row open the breaker.
+ * <p/>
+ * - OPEN: calls are refused until the open time is over. The open time starts at openMillis
+ * and doubles each time the breaker re-opens, up to maxOpenMillis.
+ * <p/>
+ * - HALF_OPEN: once the open time is over, one trial call goes through. Its success closes the
+ * breaker, its failure re-opens it.
+ * <p/>
+ * A server which asks us to wait (429 with Retry-After) opens the breaker at once for that long.
+ * <p/>
+ * There is one breaker per endpoint (see forEndpoint) for the life of the process.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public final static int  DEFAULT_FAILURE_THRESHOLD = 5;
+    public final static long DEFAULT_OPEN_MILLIS       = 60 * 1000;           // 1 minute
+    public final static long DEFAULT_MAX_OPEN_MILLIS   = 30 * 60 * 1000;      // 30 minutes
+
+    private final static Map<String, CircuitBreaker> sBreakers = new HashMap<>();
+
+    private final String mEndpoint;
+    private final int    mFailureThreshold;
+    private final long   mOpenMillis;
+    private final long   mMaxOpenMillis;
+
+    private State   mState         = State.CLOSED;
+    private int     mFailures      = 0;
+    private long    mNextOpenMillis;
+    private long    mOpenUntil     = 0;
+    private boolean mTrialInFlight = false;
+
+    /**
+     * @param endpoint         The endpoint, for logs.
+     * @param failureThreshold The number of failures in a row which opens the breaker.
+     * @param openMillis       How long the breaker first stays open.
+     * @param maxOpenMillis    The longest it stays open.
+     */
+    public CircuitBreaker(String endpoint, int failureThreshold, long openMillis, long maxOpenMillis) {
+        mEndpoint = endpoint;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+        mMaxOpenMillis = maxOpenMillis;
+        mNextOpenMillis = openMillis;
+    }
+
+    /**
+     * @param url A url of the endpoint. Its query is ignored, so every watermark of a down sync
+     *            feed shares one breaker.
+     * @return The breaker of the endpoint, created with the defaults on first use.
+     */
+    public static CircuitBreaker forEndpoint(String url) {
+        int    query    = url.indexOf('?');
+        String endpoint = query < 0 ? url : url.substring(0, query);
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(endpoint);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(endpoint, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+                                             DEFAULT_MAX_OPEN_MILLIS);
+                sBreakers.put(endpoint, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return Whether a call may go through now. In HALF_OPEN only one call is let through until
+     * it reports back.
+     */
+    public synchronized boolean allowRequest(long nowMillis) {
+        switch (mState) {
+            case OPEN:
+                if (nowMillis < mOpenUntil) {
+                    return false;
+                }
+                mState = State.HALF_OPEN;
+                mTrialInFlight = true;
+                return true;
+
+            case HALF_OPEN:
+                if (mTrialInFlight) {
+                    return false;
+                }
+                mTrialInFlight = true;
+                return true;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return How long until a call may go through, 0 if it may now.
+     */
+    public synchronized long getRetryAfterMillis(long nowMillis) {
+        return mState == State.OPEN ? Math.max(0, mOpenUntil - nowMillis) : 0;
+    }
+
+    /**
+     * The call succeeded, or failed in a way that says nothing about the server's health.
+     */
+    public synchronized void onSuccess() {
+        mState = State.CLOSED;
+        mFailures = 0;
+        mNextOpenMillis = mOpenMillis;
+        mTrialInFlight = false;
+    }
+
+    /**
+     * The call failed before it said anything about the server, e.g. writing its response to the
+     * provider. A HALF_OPEN breaker lets another trial call through.
+     */
+    public synchronized void onAborted() {
+        mTrialInFlight = false;
+    }
+
+    /**
+     * The call failed because of the server or the network.
+     *
+     * @param retryAfterMillis How long the server asked us to wait, or 0.
+     */
+    public synchronized void onFailure(long nowMillis, long retryAfterMillis) {
+        mFailures++;
+        mTrialInFlight = false;
+        if (mState == State.HALF_OPEN || mFailures >= mFailureThreshold) {
+            mOpenUntil = nowMillis + Math.max(mNextOpenMillis, retryAfterMillis);
+            mNextOpenMillis = Math.min(mMaxOpenMillis, mNextOpenMillis * 2);
+            mState = State.OPEN;
+        } else if (retryAfterMillis > 0) {     // Wait as asked, without counting it as an outage
+            mOpenUntil = nowMillis + retryAfterMillis;
+            mState = State.OPEN;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" + mEndpoint + " " + mState + ", failures: " + mFailures + "}";
+    }
+}
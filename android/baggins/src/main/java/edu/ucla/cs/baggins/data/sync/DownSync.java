@@ -0,0 +1,372 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import edu.ucla.cs.baggins.data.net.BagginsTransport;
+import edu.ucla.cs.baggins.data.net.HttpUtils;
+import edu.ucla.cs.baggins.data.provider.BagginsContract;
+import edu.ucla.cs.baggins.data.provider.StreamingBatch;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata;
+import edu.ucla.cs.baggins.data.provider.model.gson.ModelJsonReader;
+import edu.ucla.cs.baggins.util.StaticUtil;
+
+/**
+ * Gets the changes of a down sync feed from the server and applies them, remembering how far
+ * the feed has synced for the account in BagginsContract.SyncState.
+ * <p/>
+ * The request sends the stored watermark, so the server only returns the changes since:
+ * <pre>
+ * GET /sync/[feed]?since=[watermark]
+ *
+ * {"watermark": "1471478400000",
+ *  "changes": {"user": [{"id": 42, "first_name": "Ann", ...}, ...],
+ *              "child": [{"id": 7, "status": "D"}, ...]}}
+ * </pre>
+ * Each change is a model in its @SerializedName form. A change with status D is deleted,
+ * any other replaces the local row and is marked S.
+ * <p/>
+ * The response is parsed as it is read, with each change mapped straight to ContentValues by a
+ * ModelJsonReader and fed to a StreamingBatch, so memory stays flat however large the feed. With
+ * the provider in this process, the changes and the new watermark are applied in one
+ * transaction: the watermark advances with exactly the changes it covers, and a sync interrupted
+ * part way stores none of them and asks for the same changes again. A provider in another
+ * process is sent batchSize changes per applyBatch, with the watermark in the last one, so it
+ * still only advances once every change is stored, and applying changes twice is harmless.
+ * <p/>
+ * Server changes win: a row edited locally and not yet up synced is replaced.
+ */
+public class DownSync {
+    public final static String TAG = "down_sync";
+
+    /**
+     * The default number of changes per applyBatch to a provider in another process.
+     */
+    public final static int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The JSON keys of a response.
+     */
+    public final static String JSON_WATERMARK = "watermark";
+    public final static String JSON_CHANGES   = "changes";
+
+    private final static String STATUS_DELETE = "D";
+    private final static String STATUS_SYNCED = "S";
+
+    private final Context               mContext;
+    private final ContentProviderClient mClient;
+    private final String                mAuthority;
+    private final Account               mAccount;
+    private final String                mFeed;
+    private final String                mAuthToken;
+    private final int                   mBatchSize;
+
+    /**
+     * @param context   The context.
+     * @param client    The client of the provider to apply the changes with.
+     * @param authority The authority of the provider.
+     * @param account   The account being synced.
+     * @param feed      The name of the feed on the server.
+     * @param authToken The authentication token, may be null.
+     * @param batchSize The maximum number of changes per applyBatch if the provider is in another
+     *                  process, see StreamingBatch.
+     */
+    public DownSync(Context context, ContentProviderClient client, String authority, Account account,
+                    String feed, @Nullable String authToken, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive, not " + batchSize);
+        }
+        mContext = context;
+        mClient = client;
+        mAuthority = authority;
+        mAccount = account;
+        mFeed = feed;
+        mAuthToken = authToken;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Get and apply the changes since the stored watermark.
+     *
+     * @param syncResult Where the numbers of inserts and deletes are counted.
+     * @return The number of changes applied.
+     */
+    public int sync(SyncResult syncResult) throws IOException, RemoteException, OperationApplicationException {
+        String watermark = getWatermark();
+
+        BagginsTransport.Response response = HttpUtils.getJSONStream(RestConstants.downSync(mFeed, watermark), mAuthToken);
+        try {
+            int count = apply(new JsonReader(response.getReader()), syncResult);
+            Log.i(TAG, "Applied " + count + " changes of " + mFeed + " since " + watermark);
+            return count;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Apply the changes of a response as they are read, followed by the new watermark, through a
+     * StreamingBatch.
+     *
+     * @return The number of changes applied.
+     */
+    protected int apply(JsonReader reader, SyncResult syncResult)
+    throws IOException, RemoteException, OperationApplicationException {
+        reader.beginObject();
+        ChangeIterator changes = new ChangeIterator(reader, getTables(), syncResult);
+        try {
+            new StreamingBatch(mClient, mBatchSize).apply(changes);
+        } catch (ReadFailure e) {        // The transaction was rolled back
+            throw e.getCause();
+        }
+        return changes.mCount;
+    }
+
+    /**
+     * The operations of a response, parsed from the JSON as they are asked for, then the
+     * operation which stores the watermark, if there is one.
+     */
+    private class ChangeIterator implements Iterator<ContentProviderOperation> {
+        private final JsonReader                   mReader;
+        private final Map<String, ModelJsonReader> mTables;
+        private final SyncResult                   mSyncResult;
+
+        private ModelJsonReader          mTable     = null;     // The table whose array is being read
+        private boolean                  mInChanges = false;    // Reading the changes object
+        private boolean                  mEnded     = false;    // The response was read to the end
+        private String                   mWatermark = null;
+        private ContentProviderOperation mNext      = null;
+        private boolean                  mFetched   = false;    // mNext is the next operation
+        private int                      mCount     = 0;        // The changes returned so far
+
+        ChangeIterator(JsonReader reader, Map<String, ModelJsonReader> tables, SyncResult syncResult) {
+            mReader = reader;
+            mTables = tables;
+            mSyncResult = syncResult;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!mFetched) {
+                try {
+                    mNext = readNext();
+                } catch (IOException e) {
+                    throw new ReadFailure(e);
+                }
+                mFetched = true;
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public ContentProviderOperation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mFetched = false;
+            return mNext;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return The next operation, or null at the end of the response.
+         */
+        @Nullable
+        private ContentProviderOperation readNext() throws IOException {
+            while (true) {
+                if (mTable != null) {                       // In the array of a table
+                    if (mReader.hasNext()) {
+                        ContentProviderOperation operation = toOperation(mTable, mTable.read(mReader), mSyncResult);
+                        if (operation != null) {
+                            mCount++;
+                            return operation;
+                        }
+                    } else {
+                        mReader.endArray();
+                        mTable = null;
+                    }
+
+                } else if (mInChanges) {                    // In the changes object
+                    if (mReader.hasNext()) {
+                        String table = mReader.nextName();
+                        mTable = mTables.get(table);
+                        if (mTable == null) {
+                            Log.w(TAG, "Skipping the changes of unknown table " + table);
+                            mReader.skipValue();
+                        } else {
+                            mReader.beginArray();
+                        }
+                    } else {
+                        mReader.endObject();
+                        mInChanges = false;
+                    }
+
+                } else if (mReader.hasNext()) {             // In the response object
+                    String name = mReader.nextName();
+                    if (JSON_WATERMARK.equals(name) && mReader.peek() != JsonToken.NULL) {
+                        mWatermark = mReader.nextString();
+                    } else if (JSON_CHANGES.equals(name)) {
+                        mReader.beginObject();
+                        mInChanges = true;
+                    } else {
+                        mReader.skipValue();
+                    }
+
+                } else if (!mEnded) {                       // Every change was read, store the watermark
+                    mReader.endObject();
+                    mEnded = true;
+                    if (mWatermark != null) {
+                        return setWatermarkOperation(mWatermark);
+                    }
+
+                } else {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries an IOException of the response out of ChangeIterator, whose methods can not throw it.
+     */
+    private static class ReadFailure extends RuntimeException {
+        ReadFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Changes
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param values The values of a change, read by jsonReader.
+     * @return The operation which applies the change, or null if the change has no id and is
+     * skipped.
+     */
+    @Nullable
+    protected ContentProviderOperation toOperation(ModelJsonReader jsonReader, ContentValues values,
+                                                   SyncResult syncResult) {
+        String table = jsonReader.getMetadata().getTableName();
+        Uri    uri   = getSyncAdapterUri(table);
+
+        if (values.getAsLong(BagginsDomainModel._ID) == null) {
+            Log.w(TAG, "Skipping a change of " + table + " without an id: " + values);
+            syncResult.stats.numSkippedEntries++;
+            return null;
+        }
+
+        if (STATUS_DELETE.equals(values.getAsString(BagginsDomainModel.STATUS))) {
+            syncResult.stats.numDeletes++;
+            return ContentProviderOperation.newDelete(uri)
+                                           .withSelection(BagginsDomainModel._ID + " = ?",
+                                                          new String[]{values.getAsString(BagginsDomainModel._ID)})
+                                           .build();
+        }
+
+        values.put(BagginsDomainModel.STATUS, STATUS_SYNCED);
+        syncResult.stats.numInserts++;
+        return ContentProviderOperation.newInsert(uri)          // The provider inserts or replaces
+                                       .withValues(values)
+                                       .build();
+    }
+
+    /**
+     * @return A reader for the records of each model table, keyed by table name.
+     */
+    protected Map<String, ModelJsonReader> getTables() throws IOException {
+        Map<String, ModelJsonReader> tables = new HashMap<>();
+        for (Class<BagginsDomainModel<?>> modelClass : StaticUtil.getAllModelClasses(mContext)) {
+            ModelMetadata metadata = ModelMetadata.of(modelClass);
+            tables.put(metadata.getTableName(), new ModelJsonReader(metadata));
+        }
+        return tables;
+    }
+
+    /**
+     * @return The uri of table for writes by the sync adapter, whose notifications are deferred
+     * to the end of the sync.
+     */
+    protected Uri getSyncAdapterUri(String table) {
+        return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                                .authority(mAuthority)
+                                .appendPath(table)
+                                .appendQueryParameter(BagginsContract.QueryParameters.CALLER_IS_SYNCADAPTER, "true")
+                                .appendQueryParameter(BagginsContract.QueryParameters.DEFER_NOTIFY, "true")
+                                .build();
+    }
+
+    // ------------------------------------------------------------------------
+    // Watermark
+    // ------------------------------------------------------------------------
+
+    /**
+     * @return The watermark of the feed and account, or null if it has never synced.
+     */
+    @Nullable
+    public String getWatermark() throws RemoteException {
+        Uri    uri    = getSyncAdapterUri(BagginsContract.SyncState.CONTENT_NAME);
+        Cursor cursor = mClient.query(uri, new String[]{BagginsContract.SyncState.WATERMARK},
+                                      BagginsContract.SyncState.ACCOUNT + " = ? AND " +
+                                      BagginsContract.SyncState.FEED + " = ?",
+                                      new String[]{getAccountKey(), mFeed}, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The operation which stores watermark for the feed and account.
+     */
+    protected ContentProviderOperation setWatermarkOperation(String watermark) {
+        ContentValues values = new ContentValues(3);
+        values.put(BagginsContract.SyncState.ACCOUNT, getAccountKey());
+        values.put(BagginsContract.SyncState.FEED, mFeed);
+        values.put(BagginsContract.SyncState.WATERMARK, watermark);
+        return ContentProviderOperation.newInsert(getSyncAdapterUri(BagginsContract.SyncState.CONTENT_NAME))
+                                       .withValues(values)
+                                       .build();
+    }
+
+    /**
+     * @return The account column of the sync state, the account type and name.
+     */
+    private String getAccountKey() {
+        return mAccount.type + "/" + mAccount.name;
+    }
+}
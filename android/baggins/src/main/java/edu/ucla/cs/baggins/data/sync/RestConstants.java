@@ -1,5 +1,8 @@
 package edu.ucla.cs.baggins.data.sync;
 
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
 /**
  * Created by ethan on 8/9/16.
  *
@@ -74,4 +77,22 @@ public class RestConstants {
     public static String login() {
         return SERVER_URL + "/login";
     }
+
+    /**
+     * @return The url UpSync posts batches of local changes to.
+     */
+    public static String upSync() {
+        return SERVER_URL + "/sync/up";
+    }
+
+    /**
+     * @param feed      The name of the down sync feed.
+     * @param watermark The watermark the server returned with the last changes of feed, or null
+     *                  for everything.
+     * @return The url DownSync gets the changes of feed from.
+     */
+    public static String downSync(String feed, @Nullable String watermark) {
+        String url = SERVER_URL + "/sync/" + Uri.encode(feed);
+        return watermark == null ? url : url + "?since=" + Uri.encode(watermark);
+    }
 }
@@ -0,0 +1,191 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import edu.ucla.cs.baggins.data.net.HttpStatusException;
+
+/**
+ * Retries the network calls of a sync with jittered exponential backoff, behind the
+ * CircuitBreaker of their endpoint.
+ * <p/>
+ * Only idempotent calls may be retried. A down sync is: its changes are replaced by id, with the
+ * watermark stored last. An up sync batch the server acknowledged is marked S and not sent again,
+ * but one whose response was lost is sent again, so retrying up sync is only safe because the
+ * server dedupes on the batch's Idempotency-Key (see UpSync).
+ * <p/>
+ * A failure is classified (see Failure) and only a retryable one is retried. Attempt n (from 0)
+ * waits a random time in [0, min(maxDelayMillis, baseDelayMillis * 2^n)], or longer if the
+ * server asked with Retry-After. A wait longer than maxInlineDelayMillis is not slept through:
+ * the policy gives up and the sync adapter tells the sync manager to wait instead.
+ */
+public class RetryPolicy {
+    public final static String TAG = "retry_policy";
+
+    /**
+     * Why a call failed.
+     */
+    public enum Failure {
+        TIMEOUT(true),          // Connect or read timeout
+        NETWORK(true),          // No route, connection reset, truncated response...
+        SERVER(true),           // 5xx
+        THROTTLED(true),        // 429
+        CIRCUIT_OPEN(false),    // Refused by the CircuitBreaker, not sent
+        AUTH(false),            // 401 or 403
+        CLIENT(false),          // Any other 4xx, the request is wrong
+        PARSE(false);           // The response is not the JSON we expect
+
+        /**
+         * Whether the same call may succeed later.
+         */
+        public final boolean retryable;
+
+        Failure(boolean retryable) {
+            this.retryable = retryable;
+        }
+    }
+
+    /**
+     * One call to retry.
+     */
+    public interface Attempt<T> {
+        T run() throws IOException, RemoteException, OperationApplicationException;
+    }
+
+    public final static int  DEFAULT_MAX_ATTEMPTS            = 3;
+    public final static long DEFAULT_BASE_DELAY_MILLIS       = 1000;            // 1 second
+    public final static long DEFAULT_MAX_DELAY_MILLIS        = 5 * 60 * 1000;   // 5 minutes
+    public final static long DEFAULT_MAX_INLINE_DELAY_MILLIS = 30 * 1000;       // 30 seconds
+
+    private final int    mMaxAttempts;
+    private final long   mBaseDelayMillis;
+    private final long   mMaxDelayMillis;
+    private final long   mMaxInlineDelayMillis;
+    private final Random mRandom = new Random();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+             DEFAULT_MAX_INLINE_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxAttempts          The most calls made, including the first.
+     * @param baseDelayMillis      The backoff of the first retry, before jitter.
+     * @param maxDelayMillis       The longest backoff, before jitter.
+     * @param maxInlineDelayMillis The longest wait slept through within a sync.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long maxInlineDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive, not " + maxAttempts);
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxInlineDelayMillis = maxInlineDelayMillis;
+    }
+
+    /**
+     * Run attempt until it succeeds, fails in a way retrying cannot fix, or the attempts run out.
+     *
+     * @param url     The url attempt calls, whose endpoint picks the CircuitBreaker.
+     * @param attempt The idempotent call.
+     * @return What attempt returned.
+     * @throws SyncFailureException If attempt failed with an IOException, or the breaker is open.
+     */
+    public <T> T execute(String url, Attempt<T> attempt)
+    throws IOException, RemoteException, OperationApplicationException {
+        CircuitBreaker breaker = CircuitBreaker.forEndpoint(url);
+
+        for (int i = 0; ; i++) {
+            long now = System.currentTimeMillis();
+            if (!breaker.allowRequest(now)) {
+                Log.w(TAG, "Not calling, " + breaker);
+                throw new SyncFailureException(Failure.CIRCUIT_OPEN, breaker.getRetryAfterMillis(now), i, null);
+            }
+
+            IOException failed;
+            try {
+                T result = attempt.run();
+                breaker.onSuccess();
+                return result;
+            } catch (IOException e) {
+                failed = e;
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                breaker.onAborted();        // Not the server's doing
+                throw e;
+            }
+
+            Failure failure    = classify(failed);
+            long    retryAfter = getRetryAfterMillis(failed);
+            now = System.currentTimeMillis();
+            if (failure.retryable) {
+                breaker.onFailure(now, retryAfter);
+            } else {
+                breaker.onSuccess();        // The server answered, it is up
+            }
+
+            long delay = Math.max(backoffMillis(i), Math.max(retryAfter, breaker.getRetryAfterMillis(now)));
+            if (!failure.retryable || i + 1 >= mMaxAttempts || delay > mMaxInlineDelayMillis
+                || Thread.currentThread().isInterrupted()) {
+                throw new SyncFailureException(failure, failure.retryable ? delay : 0, i + 1, failed);
+            }
+
+            Log.i(TAG, "Attempt " + (i + 1) + " failed with " + failure + ", retrying in " + delay + " ms: " + failed);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {      // The sync was canceled
+                Thread.currentThread().interrupt();
+                throw new SyncFailureException(failure, delay, i + 1, failed);
+            }
+        }
+    }
+
+    /**
+     * @return The jittered backoff of retry attempt (from 0).
+     */
+    public long backoffMillis(int attempt) {
+        long cap = mBaseDelayMillis << Math.min(attempt, 30);
+        if (cap <= 0 || cap > mMaxDelayMillis) {
+            cap = mMaxDelayMillis;
+        }
+        return (long) (mRandom.nextDouble() * cap);
+    }
+
+    /**
+     * @return Why a call failed with e.
+     */
+    public static Failure classify(IOException e) {
+        if (e instanceof SyncFailureException) {
+            return ((SyncFailureException) e).getFailure();
+        }
+        if (e instanceof HttpStatusException) {
+            int code = ((HttpStatusException) e).getCode();
+            if (code == 429) {
+                return Failure.THROTTLED;
+            } else if (code >= 500) {
+                return Failure.SERVER;
+            } else if (code == 401 || code == 403) {
+                return Failure.AUTH;
+            }
+            return Failure.CLIENT;
+        }
+        if (e instanceof MalformedJsonException) {
+            return Failure.PARSE;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return Failure.TIMEOUT;
+        }
+        return Failure.NETWORK;
+    }
+
+    private static long getRetryAfterMillis(IOException e) {
+        return e instanceof HttpStatusException ? ((HttpStatusException) e).getRetryAfterMillis() : 0;
+    }
+}
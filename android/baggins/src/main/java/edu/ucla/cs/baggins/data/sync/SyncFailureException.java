@@ -0,0 +1,41 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown by RetryPolicy when it gives up on a network call, with why and how long to wait
+ * before the next sync.
+ */
+public class SyncFailureException extends IOException {
+
+    private final RetryPolicy.Failure mFailure;
+    private final long                mRetryAfterMillis;
+    private final int                 mAttempts;
+
+    /**
+     * @param failure          The kind of the last failure.
+     * @param retryAfterMillis How long to wait before trying again, or 0 for the sync manager's
+     *                         own backoff.
+     * @param attempts         The number of calls made, 0 if the circuit breaker refused it.
+     * @param cause            The last failure, may be null.
+     */
+    public SyncFailureException(RetryPolicy.Failure failure, long retryAfterMillis, int attempts, IOException cause) {
+        super(failure + " after " + attempts + " attempt(s)" + (cause == null ? "" : ": " + cause));
+        initCause(cause);
+        mFailure = failure;
+        mRetryAfterMillis = retryAfterMillis;
+        mAttempts = attempts;
+    }
+
+    public RetryPolicy.Failure getFailure() {
+        return mFailure;
+    }
+
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
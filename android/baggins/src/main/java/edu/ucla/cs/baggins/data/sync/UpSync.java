@@ -0,0 +1,332 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import edu.ucla.cs.baggins.data.net.HttpUtils;
+import edu.ucla.cs.baggins.data.provider.BagginsContract;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata;
+import edu.ucla.cs.baggins.util.StaticUtil;
+
+/**
+ * Sends the local changes of every model table to the server in batches.
+ * <p/>
+ * For each table, the rows with _status I, U or D are read batchSize at a time (in _id order)
+ * and posted as one JSON request:
+ * <pre>
+ * {"table": "user", "changes": [{"_id": "-1", "_status": "I", "first_name": "Ann", ...}, ...]}
+ * </pre>
+ * Each change is the row's getPostParams(), sent as I if the row still has a temp id. When the
+ * server accepts the batch, the rows are marked S (deleted rows are removed) in a single provider
+ * batch. The server may return {"ids": {"-1": 42, ...}} to give inserted rows their server id.
+ * <p/>
+ * So 5,000 offline edits are sent in 5,000 / batchSize requests.
+ * <p/>
+ * A batch whose response is lost (e.g. a read timeout) is sent again by the next attempt, since
+ * its rows are still I, U or D. So each request carries an Idempotency-Key header (see
+ * HttpUtils.IDEMPOTENCY_KEY), a hash of the install, the table and the full content of every
+ * change in the batch. It is the same however often an unchanged batch is sent, and differs as
+ * soon as a row in it is written again (which also changes its touched_time), so a later edit is
+ * never mistaken for a resend. The server must dedupe on it: a key it already applied must not
+ * be applied again, and must get the same response, with the same ids, as the first time.
+ * Otherwise the rows with temp ids would be inserted twice.
+ */
+public class UpSync {
+    public final static String TAG = "up_sync";
+
+    /**
+     * The default number of rows per request.
+     */
+    public final static int DEFAULT_BATCH_SIZE = 250;
+
+    /**
+     * The JSON keys of a request and its response.
+     */
+    public final static String JSON_TABLE   = "table";
+    public final static String JSON_CHANGES = "changes";
+    public final static String JSON_IDS     = "ids";
+
+    private final static String STATUS_INSERT = "I";
+    private final static String STATUS_UPDATE = "U";
+    private final static String STATUS_DELETE = "D";
+    private final static String STATUS_SYNCED = "S";
+
+    private final static String PREFS_NAME      = UpSync.class.getName();
+    private final static String PREF_INSTALL_ID = "install_id";
+
+    private final Context               mContext;
+    private final ContentProviderClient mClient;
+    private final String                mAuthority;
+    private final String                mUrl;
+    private final String                mAuthToken;
+    private final int                   mBatchSize;
+
+    /**
+     * @param context   The context.
+     * @param client    The client of the provider to read and mark the changes with.
+     * @param authority The authority of the provider.
+     * @param url       The url to post the changes to, e.g. RestConstants.upSync().
+     * @param authToken The authentication token, may be null.
+     * @param batchSize The maximum number of rows per request.
+     */
+    public UpSync(Context context, ContentProviderClient client, String authority, String url,
+                  @Nullable String authToken, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive, not " + batchSize);
+        }
+        mContext = context;
+        mClient = client;
+        mAuthority = authority;
+        mUrl = url;
+        mAuthToken = authToken;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Send the changes of every model table.
+     *
+     * @param syncResult Where the numbers of inserts, updates and deletes are counted.
+     * @return The number of rows sent.
+     */
+    public int sync(SyncResult syncResult) throws IOException, RemoteException, OperationApplicationException {
+        int count = 0;
+        for (Class<BagginsDomainModel<?>> modelClass : StaticUtil.getAllModelClasses(mContext)) {
+            count += syncTable(ModelMetadata.of(modelClass), syncResult);
+        }
+        return count;
+    }
+
+    /**
+     * Send the changes of one table, a batch at a time.
+     *
+     * @return The number of rows sent.
+     */
+    protected int syncTable(ModelMetadata metadata, SyncResult syncResult)
+    throws IOException, RemoteException, OperationApplicationException {
+        Uri tableUri = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                                        .authority(mAuthority)
+                                        .appendPath(metadata.getTableName())
+                                        .build();
+        Uri pageUri = tableUri.buildUpon()
+                              .appendQueryParameter(BagginsContract.QueryParameters.LIMIT,
+                                                    Integer.toString(mBatchSize))
+                              .build();
+
+        String selection = BagginsDomainModel.STATUS + " IN (?, ?, ?) AND " + BagginsDomainModel._ID + " > ?";
+        String sortOrder = BagginsDomainModel._ID + " ASC";
+
+        BagginsDomainModel<?> model = (BagginsDomainModel<?>) metadata.newInstance();
+        long                  after = Long.MIN_VALUE;
+        int                   count = 0;
+        while (true) {
+            String[] selectionArgs = new String[]{STATUS_INSERT, STATUS_UPDATE, STATUS_DELETE,
+                                                  Long.toString(after)};
+            Cursor cursor = mClient.query(pageUri, metadata.getClientNames(), selection, selectionArgs, sortOrder);
+            if (cursor == null) {
+                throw new IllegalStateException("Cursor is null in ContentProviderApi");   // RemoteException(String) is API 15
+            }
+
+            List<Map<String, String>> changes = new ArrayList<>(cursor.getCount());
+            List<Long>                ids     = new ArrayList<>(cursor.getCount());
+            List<String>              status  = new ArrayList<>(cursor.getCount());
+            List<Long>                touched = new ArrayList<>(cursor.getCount());
+            try {
+                int[] columnIndices = metadata.getColumnIndices(cursor);
+                while (cursor.moveToNext()) {
+                    model.load(cursor, columnIndices);
+                    Map<String, String> change = model.getPostParams();
+                    if (model.id < 0 && STATUS_UPDATE.equals(model.status)) {
+                        change.put(BagginsDomainModel.STATUS, STATUS_INSERT);  // Edited before its insert was sent
+                    }
+                    changes.add(change);
+                    ids.add(model.id);
+                    status.add(model.status);
+                    touched.add(model.touchedTime);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (changes.isEmpty()) {
+                break;
+            }
+
+            String response = HttpUtils.performJSONPostCall(mUrl, toJson(metadata.getTableName(), changes), mAuthToken,
+                                                            idempotencyKey(metadata.getTableName(), changes));
+            markSynced(tableUri, ids, status, touched, parseServerIds(response), syncResult);
+
+            count += changes.size();
+            after = ids.get(ids.size() - 1);
+            if (changes.size() < mBatchSize) {
+                break;
+            }
+        }
+
+        if (count > 0) {
+            Log.i(TAG, "Sent " + count + " changes of " + metadata.getTableName());
+        }
+        return count;
+    }
+
+    /**
+     * Mark the sent rows S, or remove them if they were deleted, in one provider batch. Each
+     * operation only applies if the row still has the status and touched_time that were read.
+     * Every local write gives the row a new touched_time (see BagginsDomainModel.update), so a row
+     * written again while its batch was in flight, even one which was already U, keeps its
+     * status and is sent by the next sync.
+     * <p/>
+     * A server id is applied by its own operation, guarded only by the temp id, so a row inserted
+     * by the server takes its id even if it changed in flight. Its next up sync is then an update.
+     */
+    protected void markSynced(Uri tableUri, List<Long> ids, List<String> status, List<Long> touched,
+                              Map<Long, Long> serverIds, SyncResult syncResult)
+    throws RemoteException, OperationApplicationException {
+        Uri uri = tableUri.buildUpon()
+                          .appendQueryParameter(BagginsContract.QueryParameters.CALLER_IS_SYNCADAPTER, "true")
+                          .appendQueryParameter(BagginsContract.QueryParameters.DEFER_NOTIFY, "true")
+                          .build();
+        String selection = BagginsDomainModel._ID + " = ? AND " + BagginsDomainModel.STATUS + " = ? AND "
+                           + "IFNULL(" + BagginsDomainModel.TOUCHED_TIME + ", 0) = CAST(? AS INTEGER)";    // NULL was read as 0
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            long     id            = ids.get(i);
+            String[] selectionArgs = new String[]{Long.toString(id), status.get(i), Long.toString(touched.get(i))};
+
+            if (STATUS_DELETE.equals(status.get(i))) {
+                operations.add(ContentProviderOperation.newDelete(uri)
+                                                       .withSelection(selection, selectionArgs)
+                                                       .build());
+                syncResult.stats.numDeletes++;
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                                                       .withValue(BagginsDomainModel.STATUS, STATUS_SYNCED)
+                                                       .withSelection(selection, selectionArgs)
+                                                       .build());
+                Long serverId = serverIds.get(id);
+                if (serverId != null) {                 // After the status, which is guarded by the temp id
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                                                           .withValue(BagginsDomainModel._ID, serverId)
+                                                           .withSelection(BagginsDomainModel._ID + " = ?",
+                                                                          new String[]{Long.toString(id)})
+                                                           .build());
+                }
+
+                if (STATUS_INSERT.equals(status.get(i))) {
+                    syncResult.stats.numInserts++;
+                } else {
+                    syncResult.stats.numUpdates++;
+                }
+            }
+        }
+        mClient.applyBatch(operations);
+    }
+
+    /**
+     * @return The JSON body of one request.
+     */
+    protected String toJson(String tableName, List<Map<String, String>> changes) throws IOException {
+        StringWriter out    = new StringWriter();
+        JsonWriter   writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name(JSON_TABLE).value(tableName);
+        writer.name(JSON_CHANGES).beginArray();
+        for (Map<String, String> change : changes) {
+            writer.beginObject();
+            for (Map.Entry<String, String> entry : change.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+        return out.toString();
+    }
+
+    /**
+     * @return The Idempotency-Key of one request: a hash of the install id and the JSON of the
+     * batch with the columns of each change in name order. Temp ids are only unique on this
+     * install, hence the install id.
+     */
+    protected String idempotencyKey(String tableName, List<Map<String, String>> changes) throws IOException {
+        List<Map<String, String>> sorted = new ArrayList<>(changes.size());
+        for (Map<String, String> change : changes) {
+            sorted.add(new TreeMap<>(change));      // The same change always hashes the same
+        }
+        String batch = getInstallId() + "\n" + toJson(tableName, sorted);
+
+        try {
+            byte[]        digest = MessageDigest.getInstance("SHA-1").digest(batch.getBytes("UTF-8"));
+            StringBuilder hex    = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);     // Every platform has SHA-1 and UTF-8
+        }
+    }
+
+    /**
+     * @return A random id of this install, created on first use.
+     */
+    private String getInstallId() {
+        SharedPreferences prefs     = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String            installId = prefs.getString(PREF_INSTALL_ID, null);
+        if (installId == null) {
+            installId = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_INSTALL_ID, installId).commit();
+        }
+        return installId;
+    }
+
+    /**
+     * @return The server ids of inserted rows, keyed by their temp id. Empty if the response
+     * has none.
+     */
+    protected Map<Long, Long> parseServerIds(String response) {
+        Map<Long, Long> serverIds = new HashMap<>();
+        try {
+            JsonElement root = new JsonParser().parse(response);
+            if (root.isJsonObject() && root.getAsJsonObject().has(JSON_IDS)) {
+                JsonObject ids = root.getAsJsonObject().getAsJsonObject(JSON_IDS);
+                for (Map.Entry<String, JsonElement> entry : ids.entrySet()) {
+                    serverIds.put(Long.parseLong(entry.getKey()), entry.getValue().getAsLong());
+                }
+            }
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring the ids of the up-sync response: " + e);
+        }
+        return serverIds;
+    }
+}
@@ -0,0 +1,213 @@
+package edu.ucla.cs.baggins.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+
+/**
+ * The single, process wide list of model classes (classes annotated with @ClientTable). The
+ * ProviderDatabaseHelper and the BagginsSQLiteProvider URI matcher both read from it,
+ * so the classes are found once per process instead of once per caller.
+ * <p/>
+ * The first call looks in these places, in order:
+ * <p/>
+ * 1. The BagginsModelRegistry generated by baggins-compiler.
+ * 2. A small file in app storage listing the class names found by a previous dex scan. It is only
+ * used if it was written for the currently installed APK (same PackageInfo.lastUpdateTime).
+ * 3. A scan of every class in the dex file. The result is written to the file for the next
+ * cold start.
+ */
+public class ModelClassCatalog {
+    public final static String TAG = "model_class_catalog";
+
+    /**
+     * The name of the file in Context.getFilesDir() the dex scan result is persisted to.
+     */
+    private final static String FILE_NAME = "baggins_model_classes";
+
+    /**
+     * Where the model classes were loaded from.
+     */
+    public enum Source {
+        REGISTRY, FILE, DEX_SCAN
+    }
+
+    private static List<Class<BagginsDomainModel<?>>> sModelClasses = null;
+    private static volatile long                      sLoadMillis   = -1;
+    private static volatile Source                    sSource       = null;
+
+    private ModelClassCatalog() {
+    }
+
+    /**
+     * @param context
+     * @return An unmodifiable list of all classes annotated with @ClientTable.
+     * @throws IOException If the dex file can not be read.
+     */
+    public static synchronized List<Class<BagginsDomainModel<?>>> getModelClasses(Context context) throws IOException {
+        if (sModelClasses != null) {
+            return sModelClasses;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+
+        List<Class<BagginsDomainModel<?>>> tables = StaticUtil.getRegisteredModelClasses(context);
+        Source                             source = Source.REGISTRY;
+
+        if (tables == null) {
+            long apkKey = getApkLastUpdateTime(context);
+            tables = readCatalogFile(context, apkKey);
+            source = Source.FILE;
+
+            if (tables == null) {
+                tables = StaticUtil.scanModelClasses(context);
+                source = Source.DEX_SCAN;
+                writeCatalogFile(context, apkKey, tables);
+            }
+        }
+
+        sModelClasses = Collections.unmodifiableList(tables);
+        sSource = source;
+        sLoadMillis = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, "Found " + tables.size() + " model classes in " + sLoadMillis + " ms from " + source);
+
+        return sModelClasses;
+    }
+
+    /**
+     * Forget the model classes and delete the persisted file, so the next call to
+     * getModelClasses finds them again.
+     */
+    public static synchronized void invalidate(Context context) {
+        sModelClasses = null;
+        sSource = null;
+        sLoadMillis = -1;
+        if (!getCatalogFile(context).delete()) {
+            Log.i(TAG, "No " + FILE_NAME + " to delete.");
+        }
+    }
+
+    /**
+     * @return How long loading the model classes took in milliseconds, or -1 if not loaded yet.
+     */
+    public static long getLoadMillis() {
+        return sLoadMillis;
+    }
+
+    /**
+     * @return Where the model classes were loaded from, or null if not loaded yet.
+     */
+    public static Source getSource() {
+        return sSource;
+    }
+
+    // ------------------------------------------------------------------------
+    // The persisted catalog file
+    // ------------------------------------------------------------------------
+
+    private static File getCatalogFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @return The time the APK was last installed or updated, or -1 if it is not known.
+     */
+    private static long getApkLastUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Package not found: " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Read the model classes from the catalog file. The first line is the APK last update time
+     * the file was written for, each following line is a class name.
+     *
+     * @return The model classes, or null if the file is missing, stale or invalid.
+     */
+    private static List<Class<BagginsDomainModel<?>>> readCatalogFile(Context context, long apkKey) {
+        File file = getCatalogFile(context);
+        if (apkKey == -1 || !file.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String key = reader.readLine();
+                if (key == null || !key.equals(Long.toString(apkKey))) {
+                    Log.i(TAG, FILE_NAME + " was written for a different APK, rescanning.");
+                    return null;
+                }
+
+                List<Class<BagginsDomainModel<?>>> tables = new ArrayList<>();
+                String                             line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    Class modelClass = Class.forName(line, true, context.getClassLoader());
+                    if (!modelClass.isAnnotationPresent(ClientTable.class)) {
+                        return null;
+                    }
+                    tables.add(modelClass);
+                }
+                return tables.isEmpty() ? null : tables;
+
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            Log.w(TAG, "Error reading " + FILE_NAME + ", rescanning: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Persist the model class names for the next cold start. The file is written to a temporary
+     * file first and renamed, so a crash never leaves a partial catalog behind.
+     */
+    private static void writeCatalogFile(Context context, long apkKey, List<Class<BagginsDomainModel<?>>> tables) {
+        if (apkKey == -1) {
+            return;
+        }
+
+        File file = getCatalogFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+            try {
+                writer.write(Long.toString(apkKey));
+                writer.newLine();
+                for (Class<?> modelClass : tables) {
+                    writer.write(modelClass.getName());
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Unable to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing " + FILE_NAME + ": " + e);
+        }
+    }
+}
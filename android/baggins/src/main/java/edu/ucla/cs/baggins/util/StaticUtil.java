@@ -15,6 +15,7 @@ import dalvik.system.DexFile;
 import dalvik.system.PathClassLoader;
 import edu.ucla.cs.baggins.data.provider.model.annotations.ClientTable;
 import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelRegistry;
 
 /**
  * Created by ethan on 12/12/15.
@@ -26,6 +27,58 @@ public class StaticUtil {
     // For getting domain objects from the class
     // ------------------------------------------------------------------------
 
+    /**
+     * Returns all classes which contain the @ClientTable annotation. These should all be of
+     * type BagginsDomainModel<?>. The result is memoized by ModelClassCatalog, so only the first
+     * call in a process does any work. See ModelClassCatalog for where the classes come from.
+     *
+     * @param context
+     * @return An unmodifiable list of the model classes.
+     */
+    public static List<Class<BagginsDomainModel<?>>> getAllModelClasses(Context context) throws IOException {
+        return ModelClassCatalog.getModelClasses(context);
+    }
+
+    /**
+     * @return How long loading the model classes took in milliseconds, or -1 if they have
+     * not been loaded. Use this to measure the startup cost of finding the model classes.
+     */
+    public static long getModelClassLoadMillis() {
+        return ModelClassCatalog.getLoadMillis();
+    }
+
+    /**
+     * @return True if the model classes were read from the generated registry.
+     */
+    public static boolean wereModelClassesFromRegistry() {
+        return ModelClassCatalog.getSource() == ModelClassCatalog.Source.REGISTRY;
+    }
+
+    /**
+     * Read the model classes from the BagginsModelRegistry generated at build time.
+     *
+     * @param context
+     * @return The model classes, or null if there is no registry.
+     */
+    protected static List<Class<BagginsDomainModel<?>>> getRegisteredModelClasses(Context context) {
+        try {
+            Class<?>      registryClass = Class.forName(ModelRegistry.CLASS_NAME, true, context.getClassLoader());
+            ModelRegistry registry      = (ModelRegistry) registryClass.newInstance();
+
+            List<Class<BagginsDomainModel<?>>> tables = new ArrayList<>();
+            for (Class modelClass : registry.getModelClasses()) {
+                tables.add(modelClass);
+            }
+            return tables;
+
+        } catch (ClassNotFoundException e) {
+            Log.i(TAG, "No " + ModelRegistry.CLASS_NAME + ", is baggins-compiler configured with apt?");
+        } catch (Throwable t) {
+            Log.w(TAG, "Error reading " + ModelRegistry.CLASS_NAME + ": " + t);
+        }
+        return null;
+    }
+
     /**
      * Looks through all classes in the project.Returns all classes which contain
      * the @ClientTable annotation. These should all be of type BagginsDomainModel<?></?>
@@ -33,7 +86,7 @@ public class StaticUtil {
      * @param context
      * @return
      */
-    public static List<Class<BagginsDomainModel<?>>> getAllModelClasses(Context context) throws IOException {
+    protected static List<Class<BagginsDomainModel<?>>> scanModelClasses(Context context) throws IOException {
 
         List<Class<BagginsDomainModel<?>>> tables = new ArrayList<>();
 
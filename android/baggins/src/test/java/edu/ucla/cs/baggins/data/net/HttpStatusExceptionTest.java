@@ -0,0 +1,43 @@
+package edu.ucla.cs.baggins.data.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing the Retry-After header in both its forms.
+ */
+public class HttpStatusExceptionTest {
+
+    /**
+     * Wed, 21 Oct 2015 07:28:00 GMT
+     */
+    private final static long DATE_MILLIS = 1445412480000L;
+
+    @Test
+    public void parsesSeconds() {
+        assertEquals(120 * 1000, HttpStatusException.parseRetryAfter("120", 0));
+        assertEquals(5 * 1000, HttpStatusException.parseRetryAfter(" 5 ", 0));
+        assertEquals(0, HttpStatusException.parseRetryAfter("0", 0));
+    }
+
+    @Test
+    public void parsesHttpDate() {
+        long now = DATE_MILLIS - 90 * 1000;
+        assertEquals(90 * 1000, HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", now));
+    }
+
+    @Test
+    public void pastDateIsNoWait() {
+        long now = DATE_MILLIS + 1000;
+        assertEquals(0, HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", now));
+    }
+
+    @Test
+    public void missingOrInvalidIsNoWait() {
+        assertEquals(0, HttpStatusException.parseRetryAfter(null, 0));
+        assertEquals(0, HttpStatusException.parseRetryAfter("", 0));
+        assertEquals(0, HttpStatusException.parseRetryAfter("soon", 0));
+        assertEquals(0, HttpStatusException.parseRetryAfter("-5", 0));
+    }
+}
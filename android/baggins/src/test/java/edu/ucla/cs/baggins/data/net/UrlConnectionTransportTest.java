@@ -0,0 +1,210 @@
+package edu.ucla.cs.baggins.data.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs UrlConnectionTransport and HttpUtils against a local HTTP server.
+ */
+public class UrlConnectionTransportTest {
+
+    private final static int TIMEOUT_MILLIS = 5000;
+
+    private HttpServer       mServer;
+    private String           mUrl;
+    private BagginsTransport mDefaultTransport;
+
+    /**
+     * What the server saw of each request, in order.
+     */
+    private final List<String>  mAcceptEncodings  = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String>  mContentEncodings = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> mRemotePorts      = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+        mDefaultTransport = HttpUtils.getTransport();
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtils.setTransport(mDefaultTransport);
+        mServer.stop(0);
+    }
+
+    @Test
+    public void decodesGzipResponse() throws IOException {
+        mServer.createContext("/gzip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mAcceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                respond(exchange, 200, gzip("hello, gzip".getBytes("UTF-8")));
+            }
+        });
+
+        BagginsTransport.Response response = newTransport(UrlConnectionTransport.NEVER_GZIP).execute(get("/gzip"));
+        try {
+            assertEquals(200, response.getCode());
+            assertEquals("hello, gzip", response.readString());
+        } finally {
+            response.close();
+        }
+        assertEquals(Arrays.asList("gzip"), mAcceptEncodings);
+    }
+
+    @Test
+    public void doesNotGzipRequestsByDefault() throws IOException {
+        mServer.createContext("/echo", new EchoHandler());
+
+        BagginsTransport.Response response = new UrlConnectionTransport().execute(post("/echo", new byte[4096]));
+        response.close();
+
+        assertEquals(Arrays.asList((String) null), mContentEncodings);
+    }
+
+    @Test
+    public void resendsWithoutGzipOn415() throws IOException {
+        mServer.createContext("/echo", new EchoHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    mContentEncodings.add("gzip");
+                    exchange.getRequestBody().close();
+                    respond(exchange, 415, new byte[0]);
+                } else {
+                    super.handle(exchange);
+                }
+            }
+        });
+
+        byte[]                    body     = "{\"table\": \"user\"}".getBytes("UTF-8");
+        BagginsTransport.Response response = newTransport(1).execute(post("/echo", body));
+        try {
+            assertEquals(200, response.getCode());
+            assertEquals("{\"table\": \"user\"}", response.readString());
+        } finally {
+            response.close();
+        }
+        assertEquals(Arrays.asList("gzip", null), mContentEncodings);
+    }
+
+    @Test
+    public void closeDrainsUnreadBodyAndReusesConnection() throws IOException {
+        mServer.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRemotePorts.add(exchange.getRemoteAddress().getPort());
+                respond(exchange, 200, new byte[16 * 1024]);
+            }
+        });
+
+        BagginsTransport transport = newTransport(UrlConnectionTransport.NEVER_GZIP);
+        for (int i = 0; i < 3; i++) {
+            BagginsTransport.Response response = transport.execute(get("/large"));
+            assertEquals(0, response.getBody().read());        // Read one byte, leave the rest
+            response.close();
+        }
+
+        assertEquals(3, mRemotePorts.size());
+        assertEquals("the connection was not reused", mRemotePorts.get(0), mRemotePorts.get(1));
+        assertEquals("the connection was not reused", mRemotePorts.get(1), mRemotePorts.get(2));
+    }
+
+    @Test
+    public void non2xxThrowsHttpStatusException() throws IOException {
+        mServer.createContext("/busy", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Retry-After", "120");
+                respond(exchange, 503, "try later".getBytes("UTF-8"));
+            }
+        });
+        HttpUtils.setTransport(newTransport(UrlConnectionTransport.NEVER_GZIP));
+
+        try {
+            HttpUtils.getJSON(mUrl + "/busy", null);
+            fail("Expected an HttpStatusException");
+        } catch (HttpStatusException e) {
+            assertEquals(503, e.getCode());
+            assertEquals(120 * 1000, e.getRetryAfterMillis());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Answers 200 with the request body, and records the request's Content-Encoding.
+     */
+    private class EchoHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            mContentEncodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            respond(exchange, 200, readAll(exchange.getRequestBody()));
+        }
+    }
+
+    private UrlConnectionTransport newTransport(int gzipMinBytes) {
+        return new UrlConnectionTransport(gzipMinBytes, TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+    }
+
+    private BagginsTransport.Request get(String path) {
+        return new BagginsTransport.Request(BagginsTransport.Request.GET, mUrl + path, null, null, null);
+    }
+
+    private BagginsTransport.Request post(String path, byte[] body) {
+        return new BagginsTransport.Request(BagginsTransport.Request.POST, mUrl + path, "application/json", null, body);
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out    = new ByteArrayOutputStream();
+        byte[]                buffer = new byte[4096];
+        int                   read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out  = new ByteArrayOutputStream();
+        GZIPOutputStream      gzip = new GZIPOutputStream(out);
+        gzip.write(body);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
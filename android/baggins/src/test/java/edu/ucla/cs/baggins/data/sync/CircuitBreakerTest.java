@@ -0,0 +1,111 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The CircuitBreaker state machine, driven with explicit times.
+ */
+public class CircuitBreakerTest {
+
+    private final static int  THRESHOLD     = 3;
+    private final static long OPEN_MILLIS   = 1000;
+    private final static long MAX_OPEN      = 3000;
+    private final static long NOW           = 1000000;
+
+    private CircuitBreaker newBreaker() {
+        return new CircuitBreaker("test", THRESHOLD, OPEN_MILLIS, MAX_OPEN);
+    }
+
+    private void failRepeatedly(CircuitBreaker breaker, int failures) {
+        for (int i = 0; i < failures; i++) {
+            assertTrue(breaker.allowRequest(NOW));
+            breaker.onFailure(NOW, 0);
+        }
+    }
+
+    @Test
+    public void opensAfterThresholdFailures() {
+        CircuitBreaker breaker = newBreaker();
+        failRepeatedly(breaker, THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        failRepeatedly(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(NOW));
+        assertEquals(OPEN_MILLIS, breaker.getRetryAfterMillis(NOW));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        CircuitBreaker breaker = newBreaker();
+        failRepeatedly(breaker, THRESHOLD - 1);
+        breaker.onSuccess();
+        failRepeatedly(breaker, THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneTrialThrough() {
+        CircuitBreaker breaker = newBreaker();
+        failRepeatedly(breaker, THRESHOLD);
+
+        long later = NOW + OPEN_MILLIS;
+        assertTrue(breaker.allowRequest(later));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("a second trial went through", breaker.allowRequest(later));
+
+        breaker.onAborted();        // The trial said nothing about the server
+        assertTrue(breaker.allowRequest(later));
+        assertFalse(breaker.allowRequest(later));
+    }
+
+    @Test
+    public void trialSuccessCloses() {
+        CircuitBreaker breaker = newBreaker();
+        failRepeatedly(breaker, THRESHOLD);
+
+        assertTrue(breaker.allowRequest(NOW + OPEN_MILLIS));
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(NOW + OPEN_MILLIS));
+        assertTrue(breaker.allowRequest(NOW + OPEN_MILLIS));
+    }
+
+    @Test
+    public void trialFailureReopensForLongerUpToMax() {
+        CircuitBreaker breaker = newBreaker();
+        failRepeatedly(breaker, THRESHOLD);
+
+        long now = NOW + OPEN_MILLIS;
+        assertTrue(breaker.allowRequest(now));
+        breaker.onFailure(now, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2 * OPEN_MILLIS, breaker.getRetryAfterMillis(now));
+
+        now += 2 * OPEN_MILLIS;
+        assertTrue(breaker.allowRequest(now));
+        breaker.onFailure(now, 0);
+        assertEquals(MAX_OPEN, breaker.getRetryAfterMillis(now));       // Not 4 * OPEN_MILLIS
+    }
+
+    @Test
+    public void retryAfterOpensAtOnce() {
+        CircuitBreaker breaker = newBreaker();
+        assertTrue(breaker.allowRequest(NOW));
+        breaker.onFailure(NOW, 30000);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(NOW + 29999));
+        assertEquals(30000, breaker.getRetryAfterMillis(NOW));
+        assertTrue(breaker.allowRequest(NOW + 30000));
+    }
+
+    @Test
+    public void endpointIgnoresQuery() {
+        CircuitBreaker breaker = CircuitBreaker.forEndpoint("http://host/sync/circuit_breaker_test?since=1");
+        assertSame(breaker, CircuitBreaker.forEndpoint("http://host/sync/circuit_breaker_test?since=2"));
+        assertEquals("http://host/sync/circuit_breaker_test", breaker.getEndpoint());
+    }
+}
@@ -0,0 +1,174 @@
+package edu.ucla.cs.baggins.data.sync;
+
+import com.google.gson.stream.MalformedJsonException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import edu.ucla.cs.baggins.data.net.HttpStatusException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Classifying failures, the backoff and when RetryPolicy retries or gives up.
+ */
+public class RetryPolicyTest {
+
+    private int mAttempts = 0;
+
+    /**
+     * @return A url of its own, so each test gets a fresh CircuitBreaker.
+     */
+    private static String url(String test) {
+        return "http://host/retry_policy_test/" + test;
+    }
+
+    // ------------------------------------------------------------------------
+    // classify
+    // ------------------------------------------------------------------------
+
+    @Test
+    public void classifiesStatusCodes() {
+        assertEquals(RetryPolicy.Failure.THROTTLED, RetryPolicy.classify(status(429)));
+        assertEquals(RetryPolicy.Failure.SERVER, RetryPolicy.classify(status(500)));
+        assertEquals(RetryPolicy.Failure.SERVER, RetryPolicy.classify(status(503)));
+        assertEquals(RetryPolicy.Failure.AUTH, RetryPolicy.classify(status(401)));
+        assertEquals(RetryPolicy.Failure.AUTH, RetryPolicy.classify(status(403)));
+        assertEquals(RetryPolicy.Failure.CLIENT, RetryPolicy.classify(status(400)));
+        assertEquals(RetryPolicy.Failure.CLIENT, RetryPolicy.classify(status(404)));
+    }
+
+    @Test
+    public void classifiesIOExceptions() {
+        assertEquals(RetryPolicy.Failure.TIMEOUT, RetryPolicy.classify(new SocketTimeoutException()));
+        assertEquals(RetryPolicy.Failure.PARSE, RetryPolicy.classify(new MalformedJsonException("not json")));
+        assertEquals(RetryPolicy.Failure.NETWORK, RetryPolicy.classify(new IOException("reset")));
+        assertEquals(RetryPolicy.Failure.AUTH,
+                     RetryPolicy.classify(new SyncFailureException(RetryPolicy.Failure.AUTH, 0, 1, null)));
+    }
+
+    @Test
+    public void onlyTransientFailuresAreRetryable() {
+        assertTrue(RetryPolicy.Failure.TIMEOUT.retryable);
+        assertTrue(RetryPolicy.Failure.NETWORK.retryable);
+        assertTrue(RetryPolicy.Failure.SERVER.retryable);
+        assertTrue(RetryPolicy.Failure.THROTTLED.retryable);
+        assertFalse(RetryPolicy.Failure.CIRCUIT_OPEN.retryable);
+        assertFalse(RetryPolicy.Failure.AUTH.retryable);
+        assertFalse(RetryPolicy.Failure.CLIENT.retryable);
+        assertFalse(RetryPolicy.Failure.PARSE.retryable);
+    }
+
+    // ------------------------------------------------------------------------
+    // backoffMillis
+    // ------------------------------------------------------------------------
+
+    @Test
+    public void backoffIsCappedByAttemptAndMax() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000, 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertInRange(policy.backoffMillis(0), 100);
+            assertInRange(policy.backoffMillis(2), 400);
+            assertInRange(policy.backoffMillis(4), 1000);       // 1600 capped by the max
+        }
+    }
+
+    @Test
+    public void backoffDoesNotOverflow() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 60000, 1000);
+        for (int attempt : new int[]{31, 62, 63, 64, 1000, Integer.MAX_VALUE}) {
+            assertInRange(policy.backoffMillis(attempt), 60000);
+        }
+
+        policy = new RetryPolicy(3, Long.MAX_VALUE / 2, 60000, 1000);     // The shift overflows
+        for (int attempt = 0; attempt < 10; attempt++) {
+            assertInRange(policy.backoffMillis(attempt), 60000);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // execute
+    // ------------------------------------------------------------------------
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 10, 1000);
+        int result = policy.execute(url("retries"), new RetryPolicy.Attempt<Integer>() {
+            @Override
+            public Integer run() throws IOException {
+                if (++mAttempts < 3) {
+                    throw new SocketTimeoutException();
+                }
+                return 42;
+            }
+        });
+        assertEquals(42, result);
+        assertEquals(3, mAttempts);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 10, 1000);
+        try {
+            policy.execute(url("max_attempts"), failing(new IOException("reset")));
+            fail("Expected a SyncFailureException");
+        } catch (SyncFailureException e) {
+            assertEquals(RetryPolicy.Failure.NETWORK, e.getFailure());
+            assertEquals(3, e.getAttempts());
+        }
+        assertEquals(3, mAttempts);
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 10, 1000);
+        try {
+            policy.execute(url("client_error"), failing(status(404)));
+            fail("Expected a SyncFailureException");
+        } catch (SyncFailureException e) {
+            assertEquals(RetryPolicy.Failure.CLIENT, e.getFailure());
+            assertEquals(0, e.getRetryAfterMillis());
+        }
+        assertEquals(1, mAttempts);
+    }
+
+    @Test
+    public void longWaitGivesUpInsteadOfSleeping() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 10, 1000);
+        long        start  = System.currentTimeMillis();
+        try {
+            policy.execute(url("long_wait"), failing(new HttpStatusException(429, "Too Many Requests", 60000)));
+            fail("Expected a SyncFailureException");
+        } catch (SyncFailureException e) {
+            assertEquals(RetryPolicy.Failure.THROTTLED, e.getFailure());
+            assertTrue(e.getRetryAfterMillis() >= 60000);
+            assertEquals(1, e.getAttempts());
+        }
+        assertEquals(1, mAttempts);
+        assertTrue("slept instead of giving up", System.currentTimeMillis() - start < 1000);
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private static HttpStatusException status(int code) {
+        return new HttpStatusException(code, null, 0);
+    }
+
+    private RetryPolicy.Attempt<Integer> failing(final IOException e) {
+        return new RetryPolicy.Attempt<Integer>() {
+            @Override
+            public Integer run() throws IOException {
+                mAttempts++;
+                throw e;
+            }
+        };
+    }
+
+    private static void assertInRange(long value, long max) {
+        assertTrue(value + " is not in [0, " + max + "]", value >= 0 && value <= max);
+    }
+}
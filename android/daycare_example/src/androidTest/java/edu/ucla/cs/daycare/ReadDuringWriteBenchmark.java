@@ -0,0 +1,106 @@
+package edu.ucla.cs.daycare;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.ucla.cs.baggins.data.provider.ProviderDatabaseConfig;
+import edu.ucla.cs.baggins.data.provider.ProviderDatabaseHelper;
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+
+/**
+ * Measures how long a small read (one page of users) takes while another thread writes users in
+ * long transactions, like a down-sync does, with and without write-ahead logging. Run it with:
+ *
+ *     ./gradlew :daycare_example:connectedAndroidTest
+ *
+ * and read the latencies from logcat with the tag read_during_write_benchmark.
+ */
+public class ReadDuringWriteBenchmark extends AndroidTestCase {
+
+    private final static String TAG            = "read_during_write_benchmark";
+    private final static String DATABASE_NAME  = "read_during_write_benchmark_db";
+    private final static int    ROWS_PER_BATCH = 2000;
+    private final static int    BATCHES        = 10;
+    private final static int    PAGE_SIZE      = 50;
+
+    public void testRollbackJournal() throws Exception {
+        run("rollback journal", new ProviderDatabaseConfig(false, null, null, null));
+    }
+
+    public void testWriteAheadLogging() throws Exception {
+        run("write-ahead logging", new ProviderDatabaseConfig(true, "NORMAL", null, null));
+    }
+
+    private void run(String name, ProviderDatabaseConfig config) throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        final ProviderDatabaseHelper helper = new ProviderDatabaseHelper(getContext(), DATABASE_NAME, config);
+        final SQLiteDatabase         db     = helper.getWritableDatabase();
+
+        final AtomicBoolean  writing = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long id = 1;
+                for (int batch = 0; batch < BATCHES; batch++) {
+                    db.beginTransaction();
+                    try {
+                        started.countDown();
+                        for (int i = 0; i < ROWS_PER_BATCH; i++, id++) {
+                            ContentValues values = new ContentValues();
+                            values.put(BagginsDomainModel._ID, id);
+                            values.put(BagginsDomainModel.STATUS, "S");
+                            values.put("first_name", "first" + id);
+                            values.put("last_name", "last" + id);
+                            db.insertOrThrow("user", null, values);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+                writing.set(false);
+            }
+        }, "benchmark_writer");
+
+        writer.start();
+        started.await();
+
+        long[] latencies = new long[16];
+        int    reads     = 0;
+        while (writing.get()) {
+            long   start  = System.nanoTime();
+            Cursor cursor = helper.getReadableDatabase()
+                                  .rawQuery("SELECT * FROM user WHERE _status != 'D' LIMIT " + PAGE_SIZE, null);
+            cursor.getCount();              // Forces the query to run
+            cursor.close();
+
+            if (reads == latencies.length) {
+                latencies = Arrays.copyOf(latencies, reads * 2);
+            }
+            latencies[reads++] = System.nanoTime() - start;
+        }
+        writer.join();
+        helper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+
+        assertTrue("No reads completed while writing", reads > 0);
+        Arrays.sort(latencies, 0, reads);
+        Log.i(TAG, name + ": " + reads + " reads during " + BATCHES * ROWS_PER_BATCH + " writes." +
+                   " p50=" + millis(latencies[reads / 2]) +
+                   " p99=" + millis(latencies[(int) (reads * 0.99)]) +
+                   " max=" + millis(latencies[reads - 1]));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,96 @@
+package edu.ucla.cs.daycare;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import edu.ucla.cs.baggins.data.provider.model.base.BagginsDomainModel;
+import edu.ucla.cs.baggins.data.provider.model.base.ModelMetadata;
+import edu.ucla.cs.daycare.model.User;
+
+/**
+ * Compares loading User rows from a cursor through the generated User$$BagginsAdapter with
+ * loading them reflectively. Run it with:
+ *
+ *     ./gradlew :daycare_example:connectedAndroidTest
+ *
+ * and read the timings from logcat with the tag hydration_benchmark.
+ */
+public class UserHydrationBenchmark extends AndroidTestCase {
+
+    private final static String TAG  = "hydration_benchmark";
+    private final static int    ROWS = 10000;
+    private final static int    RUNS = 5;
+
+    /**
+     * The annotation processor does not run on the test sources, so this subclass has no
+     * generated adapter and is loaded reflectively. It has the same columns as User.
+     */
+    public static class ReflectiveUser extends User {
+    }
+
+    public void testHydrateUsers() {
+        assertNotNull("User$$BagginsAdapter was not generated", ModelMetadata.of(User.class).getAdapter());
+        assertNull(ModelMetadata.of(ReflectiveUser.class).getAdapter());
+
+        long adapterNanos    = hydrate(new User());
+        long reflectionNanos = hydrate(new ReflectiveUser());
+
+        Log.i(TAG, "Hydrate " + ROWS + " users with adapter   : " + adapterNanos / 1000000 + " ms");
+        Log.i(TAG, "Hydrate " + ROWS + " users with reflection: " + reflectionNanos / 1000000 + " ms");
+    }
+
+    /**
+     * Load ROWS rows into new instances of prototype's class RUNS times.
+     *
+     * @return The fastest run in nanoseconds.
+     */
+    private long hydrate(User prototype) {
+        ModelMetadata metadata = ModelMetadata.of(prototype.getClass());
+        MatrixCursor  cursor   = createCursor(metadata.getClientNames());
+        int[]         indices  = metadata.getColumnIndices(cursor);
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            cursor.moveToPosition(-1);
+
+            long start = System.nanoTime();
+            while (cursor.moveToNext()) {
+                User user = (User) prototype.createModel();
+                user.load(cursor, indices);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        cursor.close();
+
+        // Make sure the rows were actually loaded
+        cursor = createCursor(metadata.getClientNames());
+        cursor.moveToLast();
+        User last = (User) prototype.createModel();
+        last.load(cursor, indices);
+        assertEquals(ROWS - 1, last.id);
+        assertEquals("first" + (ROWS - 1), last.firstName());
+
+        return best;
+    }
+
+    private MatrixCursor createCursor(String[] columns) {
+        MatrixCursor cursor = new MatrixCursor(columns, ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            Object[] row = new Object[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c].equals(BagginsDomainModel._ID)) {
+                    row[c] = (long) i;
+                } else if (columns[c].equals(BagginsDomainModel.STATUS)) {
+                    row[c] = "S";
+                } else if (columns[c].equals("first_name")) {
+                    row[c] = "first" + i;
+                } else {
+                    row[c] = columns[c] + i;
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -21,19 +21,19 @@ public class Child extends BagginsDomainModel<Child> {
 
     @ClientColumn("first_name")
     @SerializedName("mFirstName")
-    private String mFirstName;
+    String mFirstName;
 
     @ClientColumn("last_name")
     @SerializedName("mLastName")
-    private String mLastName;
+    String mLastName;
 
     @ClientColumn("birthday")
     @SerializedName("birthday")
-    private Date mBirthday;
+    Date mBirthday;
 
     @ClientColumn(value = "parent_ids", type = ClientColumn.LIST_OF_KEYS_STRING)
     @SerializedName("parentIds")
-    private List<Long> mParentsIds;
+    List<Long> mParentsIds;
 
     // ------------------------------------------------------------------------
     // Use these methods to set the data fields.
@@ -21,35 +21,35 @@ public class User extends BagginsDomainModel<User> {
 
     @ClientColumn("first_name")
     @SerializedName("firstName")
-    private String mFirstName;
+    String mFirstName;
 
     @ClientColumn("last_name")
     @SerializedName("lastName")
-    private String mLastName;
+    String mLastName;
 
     @ClientColumn("mAddress1")
     @SerializedName("address1")
-    private String mAddress1;
+    String mAddress1;
 
     @ClientColumn("mAddress2")
     @SerializedName("address2")
-    private String mAddress2;
+    String mAddress2;
 
     @ClientColumn("city")
     @SerializedName("city")
-    private String mCity;
+    String mCity;
 
     @ClientColumn("state")
     @SerializedName("state")
-    private String mState;
+    String mState;
 
     @ClientColumn("zipcode")
     @SerializedName("zipcode")
-    private String mZipcode;
+    String mZipcode;
 
     @ClientColumn("phone_number")
     @SerializedName("phoneNumber")
-    private String mPhoneNumber;
+    String mPhoneNumber;
 
     // ------------------------------------------------------------------------
     // Use these methods to set the data fields.
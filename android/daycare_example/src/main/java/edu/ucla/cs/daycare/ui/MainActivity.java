@@ -10,7 +10,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.RemoteException;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -18,8 +17,6 @@ import android.util.Log;
 import android.view.View;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import edu.ucla.cs.baggins.data.provider.BagginsContract;
 import edu.ucla.cs.baggins.data.sync.BagginsSync;
@@ -196,16 +193,8 @@ public class MainActivity extends AppCompatActivity {
                     // Create RecyclerView
                     // --------------------------------------------------------------------
 
-                    List<User> users;
-                    try {
-                        users = User.with(MainActivity.this).query(null, null, null);
-                    } catch (RemoteException e) {
-                        users = new ArrayList<>(0);
-                        Log.e(TAG, "Error: " + e);
-                    }
-                    Log.i(TAG, "User List: " + users.size());
                     RecyclerView    userList        = (RecyclerView) findViewById(R.id.main_user_list);
-                    UserListAdapter userListAdapter = new UserListAdapter(users);
+                    UserListAdapter userListAdapter = new UserListAdapter(User.with(MainActivity.this));
                     userList.setAdapter(userListAdapter);
                     userList.setLayoutManager(new LinearLayoutManager(MainActivity.this));
 
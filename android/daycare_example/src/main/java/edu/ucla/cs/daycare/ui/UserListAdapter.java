@@ -1,30 +1,73 @@
 package edu.ucla.cs.daycare.ui;
 
+import android.os.RemoteException;
 import android.support.v7.widget.RecyclerView;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
 
 import java.util.ArrayList;
-import java.util.List;
 
+import edu.ucla.cs.baggins.data.provider.model.base.Page;
 import edu.ucla.cs.daycare.R;
 import edu.ucla.cs.daycare.model.User;
 
 /**
  * Created by ethan on 5/25/16.
+ * <p/>
+ * Loads users a page at a time with User.page, fetching the next page as the list scrolls near
+ * the end of the loaded rows.
  */
 public class UserListAdapter extends RecyclerView.Adapter<UserListAdapter.ViewHolder> {
 
-    private ArrayList<User> mUserList;
+    private final static String TAG = "user_list_adapter";
 
     /**
-     * Construct adapter.
-     * @param userList The list of users to display.
+     * The number of users to load at a time.
      */
-    public UserListAdapter(List<User> userList) {
-        mUserList = new ArrayList<>(userList);
+    private final static int PAGE_SIZE = 50;
+
+    /**
+     * Load the next page when binding a row this close to the end of the loaded rows.
+     */
+    private final static int PREFETCH_DISTANCE = 10;
+
+    private final User            mUserDao;
+    private final ArrayList<User> mUserList    = new ArrayList<>();
+    private       Page.Key        mNextKey     = null;
+    private       boolean         mHasMore     = true;
+    private       boolean         mLoadPending = false;     // A loadNextPage is posted
+
+    /**
+     * Construct adapter and load the first page.
+     *
+     * @param userDao A User connected with User.with(context) to query the users from.
+     */
+    public UserListAdapter(User userDao) {
+        mUserDao = userDao;
+        loadNextPage();
+    }
+
+    /**
+     * Append the next page of users to the list.
+     */
+    private void loadNextPage() {
+        if (!mHasMore) {
+            return;
+        }
+        try {
+            Page<User> page  = mUserDao.page(PAGE_SIZE, mNextKey);
+            int        start = mUserList.size();
+            mUserList.addAll(page.getItems());
+            mNextKey = page.getNextKey();
+            mHasMore = page.hasMore();
+            notifyItemRangeInserted(start, page.getItems().size());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error: " + e);
+            mHasMore = false;
+        }
     }
 
     @Override
@@ -37,6 +80,19 @@ public class UserListAdapter extends RecyclerView.Adapter<UserListAdapter.ViewHo
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
         holder.populate(mUserList.get(position));
+
+        if (mHasMore && !mLoadPending && position >= mUserList.size() - PREFETCH_DISTANCE) {
+            // The RecyclerView can not be notified of changes while it is binding. Only one load
+            // is posted, however many rows near the end are bound before it runs.
+            mLoadPending = true;
+            holder.itemView.post(new Runnable() {
+                @Override
+                public void run() {
+                    mLoadPending = false;
+                    loadNextPage();
+                }
+            });
+        }
     }
 
     @Override